@@ -0,0 +1,75 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client side of recovering a batch after a failover where the first
+ * 'written' inserts made it before the primary went away. The resubmitted
+ * unordered batch comes back with a duplicate key error for each of those,
+ * this is what we spend working out what still needs sending.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkRecoveryBenchmark {
+
+    // -b
+    @Param({"100", "1000"})
+    int batchSize;
+
+    // How many of the batch were already inserted
+    @Param({"1", "100"})
+    int written;
+
+    private List<BsonDocument> records;
+    private List<WriteModel<BsonDocument>> batch;
+    private List<BulkWriteError> errors;
+
+    @Setup(Level.Trial)
+    public void makeRecords() {
+        TestRecord generator = new TestRecord(10, 0, 30, 1, 0, 1000, new int[]{0, 0}, 0, new Random());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        records = new ArrayList<BsonDocument>();
+        for (int i = 0; i < batchSize; i++) {
+            records.add(generator.writeRaw(buffer, 1, i));
+        }
+        errors = new ArrayList<BulkWriteError>();
+        for (int i = 0; i < Math.min(written, batchSize); i++) {
+            errors.add(new BulkWriteError(POCBulkWrite.DUPLICATE_KEY, "E11000 duplicate key error collection: "
+                    + "POCDB.POCCOLL index: _id_ dup key: { : { w: 1, i: " + i + " } }", new BsonDocument(), i));
+        }
+        batch = new ArrayList<WriteModel<BsonDocument>>(batchSize);
+        for (BsonDocument record : records) {
+            batch.add(new InsertOneModel<BsonDocument>(record));
+        }
+    }
+
+    @Benchmark
+    public int recover() {
+        return POCBulkWrite.failedWrites(batch, errors, false).size();
+    }
+}
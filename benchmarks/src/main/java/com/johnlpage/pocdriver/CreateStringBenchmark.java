@@ -0,0 +1,43 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one text field value
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateStringBenchmark {
+
+    @Param({"30", "1000", "10000"})
+    int length;
+
+    private TestRecord record;
+
+    @Setup
+    public void setup() {
+        record = new TestRecord(1, 0, length, 1, 0, 1000, new int[]{0, 0}, 0, new Random());
+    }
+
+    @Benchmark
+    public String createString() {
+        return record.CreateString(length);
+    }
+}
@@ -0,0 +1,58 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking which record a key query or update goes to with each --keydist,
+ * from a fixed number of records and from one that grows with every pick
+ * as it does while inserts are running
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NextValBenchmark {
+
+    @Param({"uniform", "zipfian", "scrambled", "latest", "hotspot", "exponential"})
+    String keyDist;
+
+    // Number of records to choose from
+    @Param({"1000", "1000000"})
+    int keySpace;
+
+    private Random rng;
+    private KeyDistribution dist;
+    private int growing;
+
+    @Setup
+    public void setup() {
+        rng = new Random();
+        dist = KeyDistribution.create(keyDist);
+        growing = keySpace;
+    }
+
+    @Benchmark
+    public int fixed() {
+        return dist.next(rng, keySpace);
+    }
+
+    @Benchmark
+    public int growing() {
+        return dist.next(rng, growing++);
+    }
+}
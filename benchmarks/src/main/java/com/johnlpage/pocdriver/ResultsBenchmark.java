@@ -0,0 +1,54 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stats recording with every thread sharing one POCTestResults as the
+ * workers do, run with -t to see how it holds up as threads are added
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ResultsBenchmark {
+
+    private POCTestResults results;
+
+    @Setup
+    public void setup() {
+        results = new POCTestResults();
+    }
+
+    @Benchmark
+    public void recordOpsDone() {
+        results.RecordOpsDone(POCopType.KEYQUERIES, 1);
+    }
+
+    @Benchmark
+    public void recordLatency() {
+        results.RecordLatency(POCopType.KEYQUERIES, 250000, 1);
+    }
+
+    // Everything a worker records for one timed op
+    @Benchmark
+    public void recordOp() {
+        results.RecordSlowOp(POCopType.KEYQUERIES, 0);
+        results.RecordLatency(POCopType.KEYQUERIES, 250000, 1);
+        results.RecordOpsDone(POCopType.KEYQUERIES, 1);
+    }
+}
@@ -0,0 +1,114 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cost of making one record, the parameters match the command
+ * line options that shape records. TestRecord keeps the array and binary
+ * data in statics so every combination runs in its own fork.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestRecordBenchmark {
+
+    // -f
+    @Param({"10", "100"})
+    int numFields;
+
+    // --depth
+    @Param({"0", "2"})
+    int depth;
+
+    // -l
+    @Param({"30", "1000"})
+    int textFieldLen;
+
+    // -a
+    @Param({"0:0", "12:60"})
+    String arrays;
+
+    // --binary
+    @Param({"0", "16"})
+    int blobSize;
+
+    private static final long NUMBER_SIZE = 1000000;
+    private static final int BATCH = 512;
+
+    private int[] arr;
+    private Random rng;
+    private TestRecord pooled;
+    private BasicOutputBuffer buffer;
+    private DocumentCodec codec;
+    private EncoderContext context;
+    private int sequence;
+
+    @Setup
+    public void setup() {
+        String[] parts = arrays.split(":");
+        arr = new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+        rng = new Random();
+        pooled = newRecord();
+        buffer = new BasicOutputBuffer();
+        codec = new DocumentCodec();
+        context = EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+    }
+
+    private TestRecord newRecord() {
+        return new TestRecord(numFields, depth, textFieldLen, 1, sequence++, NUMBER_SIZE, arr, blobSize, rng);
+    }
+
+    // A new Document per record, as updates and the async worker do
+    @Benchmark
+    public TestRecord construct() {
+        return newRecord();
+    }
+
+    // A pooled record turned into the next one, as sync inserts do
+    @Benchmark
+    public TestRecord refresh() {
+        pooled.refresh(1, sequence++);
+        return pooled;
+    }
+
+    // Pooled record plus the encoding the driver does when it is sent
+    @Benchmark
+    public int refreshAndEncode() {
+        pooled.refresh(1, sequence++);
+        if (sequence % BATCH == 0) {
+            buffer.truncateToPosition(0);
+        }
+        codec.encode(new BsonBinaryWriter(buffer), pooled.internalDoc, context);
+        return buffer.getPosition();
+    }
+
+    // --rawbson, already encoded so nothing left for the driver to do
+    @Benchmark
+    public RawBsonDocument writeRaw() {
+        if (sequence % BATCH == 0) {
+            buffer.truncateToPosition(0);
+        }
+        return pooled.writeRaw(buffer, 1, sequence++);
+    }
+}
@@ -0,0 +1,227 @@
+package com.johnlpage.pocdriver;
+
+
+import java.util.Random;
+
+
+/**
+ * Picks which of n records an op goes to, 0 being the oldest. n grows as
+ * records are inserted so each pick is worked out from n as it is now,
+ * nothing is built per size up front and changing n costs a few pow()s.
+ * Instances remember the last n so each worker needs its own.
+ *
+ * Made from a spec, the part after the name is optional:
+ * <pre>
+ * uniform                  every record equally
+ * zipfian[:theta]          oldest records hottest, theta between 0 and 1 (default 0.99)
+ * scrambled[:theta]        zipfian but the hot records are spread over the whole range
+ * latest[:theta]           zipfian with the newest records hottest
+ * hotspot[:keys:ops]       fraction ops of picks go to the oldest fraction keys (default 0.2:0.8)
+ * exponential[:pct:keys]   pct percent of picks fall in the newest fraction keys, up to 1 (default 95:0.1)
+ * </pre>
+ */
+abstract class KeyDistribution {
+
+    static final String DEFAULT = "uniform";
+
+    /**
+     * @return a record from 0 to n - 1, or 0 if there are none
+     */
+    abstract int next(Random rng, int n);
+
+    static KeyDistribution create(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "uniform":
+                    expectParams(spec, parts, 0);
+                    return new Uniform();
+                case "zipfian":
+                    expectParams(spec, parts, 1);
+                    return new Zipfian(param(parts, 1, 0.99));
+                case "scrambled":
+                    expectParams(spec, parts, 1);
+                    return new ScrambledZipfian(param(parts, 1, 0.99));
+                case "latest":
+                    expectParams(spec, parts, 1);
+                    return new Latest(param(parts, 1, 0.99));
+                case "hotspot":
+                    expectParams(spec, parts, 2);
+                    return new Hotspot(param(parts, 1, 0.2), param(parts, 2, 0.8));
+                case "exponential":
+                    expectParams(spec, parts, 2);
+                    return new Exponential(param(parts, 1, 95), param(parts, 2, 0.1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number in key distribution " + spec);
+        }
+        throw new IllegalArgumentException("Unknown key distribution " + spec);
+    }
+
+    private static void expectParams(String spec, String[] parts, int most) {
+        if (parts.length > most + 1) {
+            throw new IllegalArgumentException("Too many values for key distribution " + spec);
+        }
+    }
+
+    private static double param(String[] parts, int i, double defaultValue) {
+        return parts.length > i ? Double.parseDouble(parts[i]) : defaultValue;
+    }
+
+    static class Uniform extends KeyDistribution {
+        int next(Random rng, int n) {
+            return n <= 0 ? 0 : (int) (rng.nextDouble() * n);
+        }
+    }
+
+    /**
+     * Gray et al.'s method from "Quickly Generating Billion-Record Synthetic
+     * Databases", as YCSB uses. It needs zeta(n), the sum of 1/i^theta for i
+     * up to n, which is exact up to EXACT_TERMS and from there on worked out
+     * from the integral with Euler-Maclaurin corrections.
+     */
+    static class Zipfian extends KeyDistribution {
+        static final int EXACT_TERMS = 1000;
+
+        private final double theta;
+        private final double alpha;
+        private final double zeta2;
+        // partialZeta[i] is zeta(i)
+        private final double[] partialZeta = new double[EXACT_TERMS + 1];
+
+        private int lastN = -1;
+        private double zetaN;
+        private double eta;
+
+        Zipfian(double theta) {
+            if (!(theta > 0 && theta < 1)) {
+                throw new IllegalArgumentException("Zipfian theta must be between 0 and 1, not " + theta);
+            }
+            this.theta = theta;
+            alpha = 1 / (1 - theta);
+            for (int i = 1; i <= EXACT_TERMS; i++) {
+                partialZeta[i] = partialZeta[i - 1] + 1 / Math.pow(i, theta);
+            }
+            zeta2 = partialZeta[2];
+        }
+
+        double zeta(int n) {
+            if (n <= EXACT_TERMS) {
+                return partialZeta[n];
+            }
+            double a = EXACT_TERMS;
+            double oneMinusTheta = 1 - theta;
+            return partialZeta[EXACT_TERMS]
+                    + (Math.pow(n, oneMinusTheta) - Math.pow(a, oneMinusTheta)) / oneMinusTheta
+                    + (Math.pow(n, -theta) - Math.pow(a, -theta)) / 2
+                    + theta * (Math.pow(a, -theta - 1) - Math.pow(n, -theta - 1)) / 12;
+        }
+
+        int next(Random rng, int n) {
+            if (n <= 1) {
+                return 0;
+            }
+            if (n != lastN) {
+                zetaN = zeta(n);
+                eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+                lastN = n;
+            }
+            double u = rng.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < zeta2) {
+                return 1;
+            }
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    static class ScrambledZipfian extends Zipfian {
+        ScrambledZipfian(double theta) {
+            super(theta);
+        }
+
+        int next(Random rng, int n) {
+            if (n <= 1) {
+                return 0;
+            }
+            return (int) ((fnvHash(super.next(rng, n)) & Long.MAX_VALUE) % n);
+        }
+
+        // 64 bit FNV-1a
+        static long fnvHash(long value) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= (value >>> (i * 8)) & 0xff;
+                hash *= 0x100000001B3L;
+            }
+            return hash;
+        }
+    }
+
+    static class Latest extends Zipfian {
+        Latest(double theta) {
+            super(theta);
+        }
+
+        int next(Random rng, int n) {
+            if (n <= 1) {
+                return 0;
+            }
+            return n - 1 - super.next(rng, n);
+        }
+    }
+
+    static class Hotspot extends KeyDistribution {
+        private final double hotKeys;
+        private final double hotOps;
+
+        Hotspot(double hotKeys, double hotOps) {
+            if (!(hotKeys > 0 && hotKeys <= 1 && hotOps >= 0 && hotOps <= 1)) {
+                throw new IllegalArgumentException("Hotspot fractions must be between 0 and 1");
+            }
+            this.hotKeys = hotKeys;
+            this.hotOps = hotOps;
+        }
+
+        int next(Random rng, int n) {
+            if (n <= 1) {
+                return 0;
+            }
+            int hot = Math.max(1, (int) (n * hotKeys));
+            if (hot == n || rng.nextDouble() < hotOps) {
+                return rng.nextInt(hot);
+            }
+            return hot + rng.nextInt(n - hot);
+        }
+    }
+
+    static class Exponential extends KeyDistribution {
+        // -ln(1 - pct / 100) / keys, divided by n to give the rate for n records
+        private final double gammaPerRecord;
+
+        // How much of the untruncated distribution falls within the records
+        private final double inRange;
+
+        Exponential(double percent, double keys) {
+            if (!(percent > 0 && percent < 100 && keys > 0 && keys <= 1)) {
+                throw new IllegalArgumentException("Exponential needs a percentage between 0 and 100 and a fraction between 0 and 1");
+            }
+            gammaPerRecord = -Math.log(1 - percent / 100) / keys;
+            inRange = 1 - Math.exp(-gammaPerRecord);
+        }
+
+        int next(Random rng, int n) {
+            if (n <= 1) {
+                return 0;
+            }
+            double gamma = gammaPerRecord / n;
+            // Inverting the distribution cut off at the oldest record, so
+            // each pick takes one draw however few of them are hot
+            double back = -Math.log(1 - rng.nextDouble() * inRange) / gamma;
+            return n - 1 - Math.min(n - 1, (int) back);
+        }
+    }
+}
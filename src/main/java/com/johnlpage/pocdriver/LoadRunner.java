@@ -2,19 +2,31 @@ package com.johnlpage.pocdriver;
 
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.Block;
+import com.mongodb.ConnectionString;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.async.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.connection.ConnectionPoolSettings;
 import org.bson.Document;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import static com.mongodb.client.model.Filters.eq;
@@ -24,6 +36,7 @@ import static com.mongodb.client.model.Filters.eq;
 public class LoadRunner {
 
     private MongoClient mongoClient;
+    private com.mongodb.async.client.MongoClient asyncClient;
 
 
     private void PrepareSystem(POCTestOptions testOpts, POCTestResults results) {
@@ -36,11 +49,30 @@ public class LoadRunner {
             coll.drop();
         }
 
+        if (testOpts.loadDocs == 0 || !testOpts.deferIndexes) {
+            CreateIndexes(testOpts, coll);
+        }
+
+        results.initialCount = coll.estimatedDocumentCount();
+        //Now have a look and see if we are sharded
+        //And how many shards and make sure that the collection is sharded
+        if (!testOpts.singleserver) {
+            ConfigureSharding(testOpts);
+        }
+
+
+    }
+
+    private void CreateIndexes(POCTestOptions testOpts, MongoCollection<Document> coll) {
         TestRecord testRecord = new TestRecord(testOpts);
         List<String> fields = testRecord.listFields();
         for (int x = 0; x < testOpts.secondaryidx; x++) {
             coll.createIndex(new Document(fields.get(x), 1));
         }
+        if (testOpts.ttlSeconds > 0) {
+            coll.createIndex(new Document(TestRecord.CREATED, 1),
+                    new IndexOptions().expireAfter((long) testOpts.ttlSeconds, TimeUnit.SECONDS));
+        }
         if (testOpts.fulltext) {
             IndexOptions options = new IndexOptions();
             options.background(true);
@@ -52,15 +84,6 @@ public class LoadRunner {
             index.put("$**", "text");
             coll.createIndex(index, options);
         }
-
-        results.initialCount = coll.count();
-        //Now have a look and see if we are sharded
-        //And how many shards and make sure that the collection is sharded
-        if (!testOpts.singleserver) {
-            ConfigureSharding(testOpts);
-        }
-
-
     }
 
     private void ConfigureSharding(POCTestOptions testOpts) {
@@ -115,48 +138,288 @@ public class LoadRunner {
         }
     }
 
+    private void PrepareKeySpace(POCTestOptions testOpts) {
+        if (!testOpts.globalReads) {
+            return;
+        }
+        String firstCollection = testOpts.numcollections > 1 ? testOpts.collectionName + 0 : testOpts.collectionName;
+        long start = System.nanoTime();
+        testOpts.keySpace = POCKeySpace.discover(mongoClient.getDatabase(testOpts.databaseName)
+                .getCollection(firstCollection), testOpts);
+        System.out.format("Found the records of all workers in %.1f seconds\n", (System.nanoTime() - start) / 1e9);
+    }
+
     public void RunLoad(POCTestOptions testOpts, POCTestResults testResults) {
 
         PrepareSystem(testOpts, testResults);
+
+        if (testOpts.sharded && !testOpts.singleserver) {
+            // Every worker here or in an agent gets a range
+            int workers = testOpts.numThreads * Math.max(testOpts.coordinatorAgents, 1);
+            try {
+                testOpts.preSplit = new POCPreSplitter(mongoClient, testOpts).run(testOpts.threadIdStart, workers);
+                if (!testOpts.preSplit) {
+                    System.out.println("Not every range was placed, each worker will place its own as it starts");
+                }
+            } catch (InterruptedException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        POCCoordinator coordinator = null;
+        if (testOpts.coordinatorAgents > 0) {
+            coordinator = new POCCoordinator(testOpts, testResults);
+            try {
+                coordinator.waitForAgents();
+            } catch (IOException e) {
+                System.out.println("Could not set up the agents: " + e.getMessage());
+                coordinator.close();
+                return;
+            }
+        }
+        if (coordinator == null) {
+            PrepareKeySpace(testOpts);
+        }
+        // Setting up and waiting for agents isn't part of the test
+        testResults.ResetClock();
+
+        POCServerSampler serverSampler = null;
+        ScheduledExecutorService samplerExecutor = null;
+        if (testOpts.serverStats) {
+            serverSampler = POCServerSampler.connect(mongoClient, testOpts);
+            // Behind the workers and the reporter for the CPU
+            samplerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "serverstats");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+            samplerExecutor.scheduleWithFixedDelay(serverSampler, 0, 1, TimeUnit.SECONDS);
+        }
+
         // Report on progress by looking at testResults
-        POCTestReporter reporter = new POCTestReporter(testResults, mongoClient, testOpts);
+        POCTestReporter reporter = new POCTestReporter(testResults, mongoClient, testOpts, serverSampler);
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
         executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
 
+        POCMetricsServer metricsServer = null;
+        if (testOpts.metricsPort > 0) {
+            metricsServer = new POCMetricsServer(testResults, testOpts);
+            try {
+                metricsServer.start(testOpts.metricsPort);
+            } catch (IOException e) {
+                System.out.println("Cannot serve metrics on port " + testOpts.metricsPort + ": " + e.getMessage());
+                metricsServer = null;
+            }
+        }
+
+        try {
+            if (coordinator != null) {
+                coordinator.runAgents();
+            } else {
+                RunWorkers(testOpts, testResults);
+            }
+            executor.shutdown();
+            // The reporter drains the latency histograms so let it finish first
+            executor.awaitTermination(testOpts.reportTime, TimeUnit.SECONDS);
+            if (samplerExecutor != null) {
+                samplerExecutor.shutdown();
+                samplerExecutor.awaitTermination(testOpts.reportTime, TimeUnit.SECONDS);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            coordinator.close();
+        } catch (InterruptedException e) {
+            System.out.println(e.getMessage());
+
+        }
+
+        if (serverSampler != null) {
+            serverSampler.close();
+        }
+
+        // do final report
+        reporter.finalReport();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+
+        if (testOpts.loadDocs > 0) {
+            long loaded = testResults.GetOpsDone(POCopType.INSERTS);
+            long seconds = Math.max(testResults.GetSecondsElapsed(), 1);
+            System.out.format("Loaded %,d records in %d seconds, %,d per second\n", loaded, seconds, loaded / seconds);
+            if (testOpts.deferIndexes) {
+                long start = System.nanoTime();
+                CreateIndexes(testOpts, mongoClient.getDatabase(testOpts.databaseName)
+                        .getCollection(testOpts.collectionName));
+                System.out.format("Built the deferred indexes in %.1f seconds\n", (System.nanoTime() - start) / 1e9);
+            }
+        }
+
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+    }
+
+    /**
+     * Run our share of a coordinated test, the setup and reporting are left
+     * to the coordinator
+     */
+    void RunAgent(POCTestOptions testOpts, POCAgent agent) {
+        PrepareKeySpace(testOpts);
+        try {
+            POCTestResults testResults = agent.waitForStart(mongoClient);
+            ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+            executor.scheduleAtFixedRate(agent, 1, 1, TimeUnit.SECONDS);
+            RunWorkers(testOpts, testResults);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            agent.finish();
+        } catch (IOException e) {
+            System.out.println("Lost the coordinator: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+    }
+
+    private void RunWorkers(POCTestOptions testOpts, POCTestResults testResults) throws InterruptedException {
+        // Change stream consumers are open before the first write so they see it
+        List<POCChangeStreamConsumer> consumers = new ArrayList<POCChangeStreamConsumer>();
+        List<Thread> consumerThreads = new ArrayList<Thread>();
+        CountDownLatch opened = new CountDownLatch(testOpts.changeStreams);
+        for (int i = 0; i < testOpts.changeStreams; i++) {
+            POCChangeStreamConsumer consumer = new POCChangeStreamConsumer(mongoClient, testOpts, testResults, i, opened);
+            Thread thread = new Thread(consumer, "changestream-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            consumers.add(consumer);
+            consumerThreads.add(thread);
+        }
+        opened.await();
 
         // Using a thread pool we keep filled
-        ExecutorService testexec = Executors
-                .newFixedThreadPool(testOpts.numThreads);
+        ExecutorService testexec = newWorkerExecutor(testOpts);
 
         // Allow for multiple clients to run -
         // Check for testOpts.threadIdStart - this should be an integer to start
         // the 'workerID' for each set of threads.
-        int threadIdStart = testOpts.threadIdStart;
+        final int threadIdStart = testOpts.threadIdStart;
         //System.out.println("threadIdStart="+threadIdStart);
         for (int i = threadIdStart; i < (testOpts.numThreads + threadIdStart); i++) {
-            testexec.execute(new MongoWorker(mongoClient, testOpts, testResults, i));
+            final int workerID = i;
+            // Each worker is built on its own thread so their setup queries
+            // run side by side rather than one after another on this one
+            testexec.execute(new Runnable() {
+                public void run() {
+                    Runnable worker;
+                    try {
+                        worker = newWorker(testOpts, testResults, workerID, threadIdStart);
+                    } catch (MongoException e) {
+                        System.out.println("Worker " + workerID + " could not start: " + e.getMessage());
+                        if (testOpts.debug)
+                            e.printStackTrace();
+                        return;
+                    }
+                    worker.run();
+                }
+            });
         }
 
         testexec.shutdown();
 
-        try {
-            testexec.awaitTermination(Long.MAX_VALUE,
-                    TimeUnit.SECONDS);
-            //System.out.println("All Threads Complete: " + b);
-            executor.shutdown();
-        } catch (InterruptedException e) {
-            System.out.println(e.getMessage());
+        testexec.awaitTermination(Long.MAX_VALUE,
+                TimeUnit.SECONDS);
 
+        for (POCChangeStreamConsumer consumer : consumers) {
+            consumer.stop();
         }
+        for (Thread thread : consumerThreads) {
+            thread.join();
+        }
+        //System.out.println("All Threads Complete: " + b);
+    }
 
-        // do final report
-        reporter.finalReport();
+    private Runnable newWorker(POCTestOptions testOpts, POCTestResults testResults, int workerID, int threadIdStart) {
+        if (testOpts.loadDocs > 0) {
+            return new POCBulkLoader(mongoClient, testOpts, testResults, workerID,
+                    share(testOpts.loadDocs, testOpts.numThreads, workerID - threadIdStart));
+        } else if (asyncClient != null) {
+            return new MongoAsyncWorker(mongoClient, asyncClient, testOpts, testResults, workerID);
+        }
+        return new MongoWorker(mongoClient, testOpts, testResults, workerID);
+    }
+
+    /**
+     * Split total between parts as evenly as it goes
+     */
+    static long share(long total, int parts, int part) {
+        return total / parts + (part < total % parts ? 1 : 0);
+    }
+
+    /**
+     * One platform thread per worker unless virtual threads were asked for,
+     * looked up at runtime so we still build for and run on older JVMs
+     */
+    private ExecutorService newWorkerExecutor(POCTestOptions testOpts) {
+        if (testOpts.virtualThreads) {
+            try {
+                Method virtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) virtualExecutor.invoke(null);
+            } catch (Exception e) {
+                System.out.println("Virtual threads need Java 21 or later, using "
+                        + testOpts.numThreads + " platform threads instead");
+            }
+        }
+        return Executors.newFixedThreadPool(testOpts.numThreads);
     }
 
     LoadRunner(POCTestOptions testOpts) {
         try {
             //For not authentication via connection string passing of user/pass only
-            mongoClient = new MongoClient(new MongoClientURI(testOpts.connectionDetails));
+            MongoClientURI uri = new MongoClientURI(testOpts.connectionDetails);
+            MongoClientOptions.Builder options = MongoClientOptions.builder();
+            // By default only 5 threads per pooled connection may wait for one,
+            // with more threads than that the rest would fail rather than queue
+            int poolSize = uri.getOptions().getConnectionsPerHost();
+            int waitMultiple = uri.getOptions().getThreadsAllowedToBlockForConnectionMultiplier();
+            if (testOpts.numThreads > poolSize * waitMultiple) {
+                int needed = (testOpts.numThreads + poolSize - 1) / poolSize;
+                options.threadsAllowedToBlockForConnectionMultiplier(needed);
+            }
+            final POCDriverMetrics driverMetrics = testOpts.driverMetrics;
+            if (driverMetrics != null) {
+                options.addCommandListener(driverMetrics).addConnectionPoolListener(driverMetrics);
+            }
+            mongoClient = new MongoClient(new MongoClientURI(testOpts.connectionDetails, options));
+            if (testOpts.asyncOps > 0) {
+                ConnectionString connectionString = new ConnectionString(testOpts.connectionDetails);
+                // Every worker can have --async ops waiting for a connection,
+                // by default only 500 may wait and the rest would fail
+                final boolean sizeWaitQueue = connectionString.getThreadsAllowedToBlockForConnectionMultiplier() == null;
+                final int waiters = Math.max(testOpts.numThreads * testOpts.asyncOps, 500);
+                MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                        .applyConnectionString(connectionString)
+                        .applyToConnectionPoolSettings(new Block<ConnectionPoolSettings.Builder>() {
+                            public void apply(ConnectionPoolSettings.Builder builder) {
+                                if (sizeWaitQueue) {
+                                    builder.maxWaitQueueSize(waiters);
+                                }
+                                if (driverMetrics != null) {
+                                    builder.addConnectionPoolListener(driverMetrics);
+                                }
+                            }
+                        });
+                if (driverMetrics != null) {
+                    settings.addCommandListener(driverMetrics);
+                }
+                asyncClient = MongoClients.create(settings.build());
+            }
         } catch (Exception e) {
 
             e.printStackTrace();
@@ -0,0 +1,353 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoClient;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.AggregateIterable;
+import com.mongodb.async.client.ClientSession;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the ops POCWorker picks on the async driver, keeping up to
+ * testOpts.asyncOps operations outstanding at once. When that many are in
+ * flight the worker waits for one to finish before sending more. Results go
+ * into the same POCTestResults from the driver's callback threads.
+ */
+public class MongoAsyncWorker extends POCWorker<MongoCollection<Document>> {
+
+    // Batches wait here to be sent again rather than on the driver's threads
+    private static final ScheduledExecutorService RESENDS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "resends");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final com.mongodb.async.client.MongoClient asyncClient;
+    private final Semaphore inFlight;
+    // A workflow may update or delete what an earlier batch inserted, so
+    // with one a batch isn't sent until the one before has been written
+    private final Semaphore batchOrder = new Semaphore(1);
+
+    MongoAsyncWorker(MongoClient c, com.mongodb.async.client.MongoClient ac, POCTestOptions t, POCTestResults r, int id) {
+        // Setup is done once with the synchronous client, it's simpler
+        super(c, t, r, id, collections(ac, t), true);
+        asyncClient = ac;
+        inFlight = new Semaphore(testOpts.asyncOps);
+    }
+
+    private static List<MongoCollection<Document>> collections(com.mongodb.async.client.MongoClient ac, POCTestOptions testOpts) {
+        MongoDatabase db = ac.getDatabase(testOpts.databaseName);
+        List<MongoCollection<Document>> colls = new ArrayList<MongoCollection<Document>>();
+        if (testOpts.numcollections > 1) {
+            for (int i = 0; i < testOpts.numcollections; i++) {
+                colls.add(db.getCollection(testOpts.collectionName + i));
+            }
+        } else {
+            colls.add(db.getCollection(testOpts.collectionName));
+        }
+        return colls;
+    }
+
+    void flush(POCBulkWrite bulkWrite) throws InterruptedException {
+        inFlight.acquire();
+        if (workflow != null) {
+            batchOrder.acquire();
+        }
+        new BulkFlush(coll.withDocumentClass(BsonDocument.class), bulkWrite).submit();
+    }
+
+    /**
+     * Sends a batch and whatever of it didn't get written again, the permit
+     * is held until it has all gone through
+     */
+    private class BulkFlush implements SingleResultCallback<BulkWriteResult>, Runnable {
+        private final MongoCollection<BsonDocument> target;
+        private final POCBulkWrite bulkWrite;
+
+        BulkFlush(MongoCollection<BsonDocument> target, POCBulkWrite bulkWrite) {
+            this.target = target;
+            this.bulkWrite = bulkWrite;
+        }
+
+        void submit() {
+            bulkWrite.sending();
+            try {
+                target.bulkWrite(bulkWrite.pending(), bulkWrite.options(), this);
+            } catch (RuntimeException e) {
+                onResult(null, e);
+            }
+        }
+
+        // Send again once the backoff is over
+        public void run() {
+            submit();
+        }
+
+        public void onResult(BulkWriteResult result, Throwable t) {
+            if (t != null) {
+                bulkWrite.failed(t, testResults, testOpts.debug);
+            } else {
+                bulkWrite.succeeded(result);
+            }
+            if (!bulkWrite.done()) {
+                RESENDS.schedule(this, bulkWrite.backoffMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+            try {
+                flushed(bulkWrite);
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (workflow != null) {
+                batchOrder.release();
+            }
+            inFlight.release();
+        }
+    }
+
+    /**
+     * A callback that records the op when it comes back and frees its permit
+     */
+    private class OpDone<T> implements SingleResultCallback<T> {
+        private final POCopType opType;
+        private final long starttime = System.nanoTime();
+        private final long opIntendedStart = intendedStart;
+
+        OpDone(POCopType opType) {
+            this.opType = opType;
+        }
+
+        public void onResult(T result, Throwable t) {
+            try {
+                if (t != null) {
+                    recordError(opType, t);
+                } else {
+                    recordOp(opType, starttime, opIntendedStart);
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    Document keyQuery(Document query, boolean needResult) throws InterruptedException {
+        FindIterable<Document> find = coll.find(query);
+        if (projection != null) {
+            find = find.projection(projection);
+        }
+        inFlight.acquire();
+        final long starttime = System.nanoTime();
+        final long opIntendedStart = intendedStart;
+        // A workflow puts the record on its stack so has to wait for it
+        final CountDownLatch done = needResult ? new CountDownLatch(1) : null;
+        final Document[] found = new Document[1];
+        find.first(new SingleResultCallback<Document>() {
+            public void onResult(Document result, Throwable t) {
+                try {
+                    if (t != null) {
+                        recordError(POCopType.KEYQUERIES, t);
+                    } else if (result != null) {
+                        recordOp(POCopType.KEYQUERIES, starttime, opIntendedStart);
+                        found[0] = result;
+                    }
+                } finally {
+                    inFlight.release();
+                    if (done != null) {
+                        done.countDown();
+                    }
+                }
+            }
+        });
+        if (done == null) {
+            return null;
+        }
+        done.await();
+        return found[0];
+    }
+
+    void find(POCopType opType, Bson filter, Bson projection, Bson sort, int limit) throws InterruptedException {
+        FindIterable<Document> find = coll.find(filter).limit(limit);
+        if (projection != null) {
+            find = find.projection(projection);
+        }
+        if (sort != null) {
+            find = find.sort(sort);
+        }
+        inFlight.acquire();
+        find.into(new ArrayList<Document>(limit), new OpDone<ArrayList<Document>>(opType));
+    }
+
+    void aggregate(List<Bson> pipeline) throws InterruptedException {
+        AggregateIterable<Document> aggregate = coll.withReadPreference(testOpts.aggregationReadPreference)
+                .aggregate(pipeline);
+        if (testOpts.aggregationBatchSize > 0) {
+            aggregate = aggregate.batchSize(testOpts.aggregationBatchSize);
+        }
+        inFlight.acquire();
+        aggregate.into(new ArrayList<Document>(testOpts.aggregationLimit), new OpDone<ArrayList<Document>>(POCopType.AGGREGATIONS));
+    }
+
+    void findAndModify(POCopType opType, Document query, Document change) throws InterruptedException {
+        inFlight.acquire();
+        coll.findOneAndUpdate(query, change, new OpDone<Document>(opType));
+    }
+
+    void transaction(List<MongoCollection<Document>> targets, List<Document> keys, List<Document> changes)
+            throws InterruptedException {
+        Transaction transaction = new Transaction(targets, keys, changes);
+        inFlight.acquire();
+        transaction.start();
+    }
+
+    /**
+     * As MongoWorker.transaction, each step sent from the callback of the one
+     * before. The permit is held until the transaction is over.
+     */
+    private class Transaction {
+        private final List<MongoCollection<Document>> targets;
+        private final List<Document> keys;
+        private final List<Document> changes;
+        private final long starttime = System.nanoTime();
+        private final long opIntendedStart = intendedStart;
+        private ClientSession session;
+        private int attempt = 1;
+        private int commitAttempt;
+        private long commitStart;
+
+        Transaction(List<MongoCollection<Document>> targets, List<Document> keys, List<Document> changes) {
+            this.targets = targets;
+            this.keys = keys;
+            this.changes = changes;
+        }
+
+        void start() {
+            asyncClient.startSession(new SingleResultCallback<ClientSession>() {
+                public void onResult(ClientSession result, Throwable t) {
+                    if (t != null) {
+                        finish(t);
+                        return;
+                    }
+                    session = result;
+                    begin();
+                }
+            });
+        }
+
+        private void begin() {
+            try {
+                session.startTransaction();
+                step(0);
+            } catch (RuntimeException e) {
+                finish(e);
+            }
+        }
+
+        // Read then update record i, then go on to the next
+        private void step(final int i) {
+            if (i == keys.size()) {
+                commitAttempt = 1;
+                commitStart = System.nanoTime();
+                commit();
+                return;
+            }
+            final MongoCollection<Document> target = targets.get(i);
+            target.find(session, keys.get(i)).first(new SingleResultCallback<Document>() {
+                public void onResult(Document result, Throwable t) {
+                    if (t != null) {
+                        failed(t);
+                        return;
+                    }
+                    target.updateOne(session, keys.get(i), changes.get(i), new SingleResultCallback<UpdateResult>() {
+                        public void onResult(UpdateResult result, Throwable t) {
+                            if (t != null) {
+                                failed(t);
+                            } else {
+                                step(i + 1);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void commit() {
+            session.commitTransaction(new SingleResultCallback<Void>() {
+                public void onResult(Void result, Throwable t) {
+                    if (t == null) {
+                        recordOp(POCopType.TXNCOMMITS, commitStart, opIntendedStart);
+                        finish(null);
+                    } else if (unknownCommitResult(t) && commitAttempt++ < MAX_TXN_ATTEMPTS) {
+                        commit();
+                    } else {
+                        failed(t);
+                    }
+                }
+            });
+        }
+
+        private void failed(final Throwable t) {
+            SingleResultCallback<Void> next = new SingleResultCallback<Void>() {
+                public void onResult(Void result, Throwable ignored) {
+                    if (transientTxnError(t) && attempt++ < MAX_TXN_ATTEMPTS) {
+                        testResults.RecordTransactionRetry();
+                        begin();
+                    } else {
+                        finish(t);
+                    }
+                }
+            };
+            // The transaction may already be over, on the server or after a commit
+            if (session.hasActiveTransaction()) {
+                try {
+                    session.abortTransaction(next);
+                    return;
+                } catch (RuntimeException e) {
+                    // It is rolled back when the session ends anyway
+                }
+            }
+            next.onResult(null, null);
+        }
+
+        private void finish(Throwable t) {
+            try {
+                if (session != null) {
+                    session.close();
+                }
+                if (t != null) {
+                    recordError(POCopType.TRANSACTIONS, t);
+                } else {
+                    recordOp(POCopType.TRANSACTIONS, starttime, opIntendedStart);
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    // Wait for everything outstanding to come back
+    void drain() throws InterruptedException {
+        inFlight.acquire(testOpts.asyncOps);
+        inFlight.release(testOpts.asyncOps);
+    }
+}
@@ -0,0 +1,174 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+
+/**
+ * One process in a coordinated run. The coordinator sends the options to run
+ * with and which worker IDs are ours, then once every agent is ready tells us
+ * to start. From then on we send it what our workers did every second.
+ */
+public class POCAgent implements Runnable {
+
+    private DataInputStream in;
+    private DataOutputStream out;
+    private POCTestOptions testOpts;
+    private POCTestResults testResults;
+    private MongoClient mongoClient;
+
+    // What we have already sent, so each interval only sends what is new
+    private long[] sentOps = new long[POCopType.values().length];
+    private long[] sentSlowOps = new long[POCopType.values().length];
+    private long[] sentErrors = new long[POCopType.values().length];
+    private long sentBulkRetries = 0;
+    private long sentRetriedOps = 0;
+    private long sentRecoveryMillis = 0;
+    private long sentTransactionRetries = 0;
+
+    POCAgent(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * @param coordinator host or host:port
+     */
+    static POCAgent connect(String coordinator) throws IOException {
+        String[] parts = coordinator.split(":");
+        int port = parts.length > 1 ? Integer.parseInt(parts[1]) : POCCoordinator.DEFAULT_PORT;
+        Socket socket = new Socket(parts[0], port);
+        socket.setTcpNoDelay(true);
+        return new POCAgent(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * @param connectionDetails the agent's own -c, which has any credentials
+     * as the coordinator doesn't send them, or null to use the coordinator's
+     */
+    POCTestOptions readConfig(String connectionDetails) throws IOException, ParseException {
+        if (in.readInt() != POCCoordinator.MAGIC || in.readInt() != POCCoordinator.VERSION) {
+            throw new IOException("Not a POCDriver coordinator of this version");
+        }
+        int threadIdStart = in.readInt();
+        boolean sharded = in.readBoolean();
+        int numShards = in.readInt();
+        boolean preSplit = in.readBoolean();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        testOpts = new POCTestOptions(args);
+        int agent = (threadIdStart - testOpts.threadIdStart) / testOpts.numThreads;
+        // Each consumer sees every agent's writes, so only the first agent
+        // runs them or the events would be counted once per agent
+        if (agent != 0) {
+            testOpts.changeStreams = 0;
+        }
+        if (testOpts.loadDocs > 0) {
+            // A --load count is for the whole run, we load our agent's part
+            testOpts.loadDocs = LoadRunner.share(testOpts.loadDocs, testOpts.coordinatorAgents, agent);
+        }
+        // The coordinator does the setup and keeps the stats file
+        testOpts.coordinatorAgents = 0;
+        testOpts.logfile = null;
+        testOpts.threadIdStart = threadIdStart;
+        if (connectionDetails != null) {
+            testOpts.connectionDetails = connectionDetails;
+        }
+        testOpts.sharded = sharded;
+        testOpts.numShards = numShards;
+        testOpts.preSplit = preSplit;
+        System.out.format("Running workers %d to %d for the coordinator\n",
+                threadIdStart, threadIdStart + testOpts.numThreads - 1);
+        return testOpts;
+    }
+
+    /**
+     * Tell the coordinator we are ready and wait for it to start everyone
+     *
+     * @return the results our workers should record to, timed from the start
+     */
+    POCTestResults waitForStart(MongoClient mongoClient) throws IOException {
+        this.mongoClient = mongoClient;
+        out.writeByte(POCCoordinator.READY);
+        out.flush();
+        if (in.readByte() != POCCoordinator.START) {
+            throw new IOException("Coordinator did not start the test");
+        }
+        testResults = new POCTestResults();
+        return testResults;
+    }
+
+    public void run() {
+        try {
+            if (testOpts.sharded && !testOpts.singleserver) {
+                try {
+                    testOpts.numShards = (int) mongoClient.getDatabase("config").getCollection("shards").countDocuments();
+                } catch (MongoException e) {
+                    // Keep the shard count we have
+                }
+            }
+            sendInterval();
+        } catch (IOException e) {
+            // Nobody is going to see what we do from here on
+            System.out.println("Lost the coordinator: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Send the last of the stats once the workers have stopped
+     */
+    void finish() throws IOException {
+        sendInterval();
+        out.writeByte(POCCoordinator.DONE);
+        out.close();
+    }
+
+    void sendInterval() throws IOException {
+        out.writeByte(POCCoordinator.STATS);
+        long bulkRetries = testResults.GetBulkRetries();
+        long retriedOps = testResults.GetRetriedOps();
+        long recoveryMillis = testResults.GetRecoveryMillis();
+        out.writeLong(bulkRetries - sentBulkRetries);
+        out.writeLong(retriedOps - sentRetriedOps);
+        out.writeLong(recoveryMillis - sentRecoveryMillis);
+        out.writeLong(testResults.GetLongestRecoveryMillis());
+        sentBulkRetries = bulkRetries;
+        sentRetriedOps = retriedOps;
+        sentRecoveryMillis = recoveryMillis;
+        long transactionRetries = testResults.GetTransactionRetries();
+        out.writeLong(transactionRetries - sentTransactionRetries);
+        sentTransactionRetries = transactionRetries;
+        for (POCopType o : POCopType.values()) {
+            int i = o.ordinal();
+            long ops = testResults.GetOpsDone(o);
+            long slowOps = testResults.GetSlowOps(o);
+            long errors = testResults.GetErrors(o);
+            out.writeLong(ops - sentOps[i]);
+            out.writeLong(slowOps - sentSlowOps[i]);
+            out.writeLong(errors - sentErrors[i]);
+            sentOps[i] = ops;
+            sentSlowOps[i] = slowOps;
+            sentErrors[i] = errors;
+            POCCoordinator.writeHistogram(out, testResults.GetIntervalLatency(o));
+            if (testOpts.openLoop) {
+                POCCoordinator.writeHistogram(out, testResults.GetIntervalCorrectedLatency(o));
+            }
+        }
+        out.flush();
+    }
+}
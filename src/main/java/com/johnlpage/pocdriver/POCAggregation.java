@@ -0,0 +1,60 @@
+package com.johnlpage.pocdriver;
+
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.limit;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.sort;
+import static com.mongodb.client.model.Sorts.descending;
+
+
+/**
+ * The --aggregations reporting query: take --aggdocs records from one
+ * worker, group them by the first letter of a text field, a few dozen
+ * groups at most, and return the --agglimit biggest
+ */
+class POCAggregation {
+
+    private final String groupBy;
+    private final String numberField;
+    private final int docs;
+    private final int limit;
+
+    POCAggregation(POCTestOptions testOpts) {
+        List<String> fields = new TestRecord(testOpts).listFields();
+        String text = null;
+        for (String field : fields) {
+            if (TestRecord.isTextField(TestRecord.fieldNo(field))) {
+                text = field;
+                break;
+            }
+        }
+        // Without text fields there is still the worker to group by
+        groupBy = text != null ? text : "_id.w";
+        // fld0 is always a number
+        numberField = fields.get(0);
+        docs = testOpts.aggregationDocs;
+        limit = testOpts.aggregationLimit;
+    }
+
+    /**
+     * @param start the _id of the first record to take, the rest follow it
+     */
+    List<Bson> pipeline(Document start) {
+        Document end = new Document("w", start.get("w")).append("i", start.getInteger("i") + docs);
+        Object key = groupBy.equals("_id.w") ? "$_id.w"
+                : new Document("$substrCP", Arrays.<Object>asList("$" + groupBy, 0, 1));
+        return Arrays.asList(
+                match(new Document("_id", new Document("$gte", start).append("$lt", end))),
+                group(key, sum("count", 1), sum("total", "$" + numberField)),
+                sort(descending("count")),
+                limit(limit));
+    }
+}
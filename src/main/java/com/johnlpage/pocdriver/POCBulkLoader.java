@@ -0,0 +1,169 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * One worker's share of a --load. Records are made on a thread of their own
+ * and handed over a batch at a time to be written, so the next batch is
+ * being built while the last one is on the wire, and none of the op mix,
+ * rate limiting or per op bookkeeping of a normal worker gets in the way.
+ */
+public class POCBulkLoader implements Runnable {
+
+    // Batches in use at once: one being built, one being written and one
+    // ready to go so neither side waits on the other for long
+    private static final int PIPELINE_DEPTH = 3;
+
+    private POCTestOptions testOpts;
+    private POCTestResults testResults;
+    private int workerID;
+    private long toLoad;
+    private long slowThresholdNanos;
+    private List<MongoCollection<BsonDocument>> colls = new ArrayList<MongoCollection<BsonDocument>>();
+    private int lastCollection = 0;
+    private int sequence;
+
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(PIPELINE_DEPTH);
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(PIPELINE_DEPTH + 1);
+    // Sent by the generator when it has no more
+    private final Batch end = new Batch();
+
+    /**
+     * The records of a batch are written into buffer, so it can't be
+     * reused until the batch has been written
+     */
+    private static class Batch {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        final List<WriteModel<BsonDocument>> writes = new ArrayList<WriteModel<BsonDocument>>();
+    }
+
+    POCBulkLoader(MongoClient mongoClient, POCTestOptions testOpts, POCTestResults testResults,
+                  int workerID, long toLoad) {
+        this.testOpts = testOpts;
+        this.testResults = testResults;
+        this.workerID = workerID;
+        this.toLoad = toLoad;
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(testOpts.slowThreshold);
+
+        MongoDatabase db = mongoClient.getDatabase(testOpts.databaseName);
+        if (testOpts.numcollections > 1) {
+            for (int i = 0; i < testOpts.numcollections; i++) {
+                colls.add(db.getCollection(testOpts.collectionName + i, BsonDocument.class));
+            }
+        } else {
+            colls.add(db.getCollection(testOpts.collectionName, BsonDocument.class));
+        }
+        // Carry on from anything a previous load left
+        sequence = POCWorker.getHighestID(colls.get(0).withDocumentClass(Document.class), workerID);
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            free.add(new Batch());
+        }
+    }
+
+    public void run() {
+        Thread generator = new Thread(new Runnable() {
+            public void run() {
+                generate();
+            }
+        }, "loader-" + workerID);
+        generator.setDaemon(true);
+        generator.start();
+        try {
+            write();
+        } catch (InterruptedException e) {
+            generator.interrupt();
+        }
+    }
+
+    private void generate() {
+        TestRecord record = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen,
+                workerID, 0, testOpts.NUMBER_SIZE,
+                new int[]{testOpts.arraytop, testOpts.arraynext}, testOpts.blobSize, new Random());
+        POCWorker.stamp(record, testOpts);
+        long remaining = toLoad;
+        try {
+            try {
+                while (remaining > 0) {
+                    Batch batch = free.take();
+                    batch.buffer.truncateToPosition(0);
+                    batch.writes.clear();
+                    int count = (int) Math.min(testOpts.batchSize, remaining);
+                    for (int i = 0; i < count; i++) {
+                        batch.writes.add(new InsertOneModel<BsonDocument>(
+                                record.writeRaw(batch.buffer, workerID, sequence++)));
+                    }
+                    remaining -= count;
+                    full.put(batch);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Could not make records to load: " + e.getMessage());
+                if (testOpts.debug)
+                    e.printStackTrace();
+            }
+            full.put(end);
+        } catch (InterruptedException e) {
+            // The writer has given up
+        }
+    }
+
+    private void write() throws InterruptedException {
+        Batch batch;
+        while ((batch = full.take()) != end) {
+            MongoCollection<BsonDocument> coll = colls.get(lastCollection);
+            lastCollection = (lastCollection + 1) % colls.size();
+
+            long starttime = System.nanoTime();
+            int inserted = insert(coll, batch.writes);
+            long taken = System.nanoTime() - starttime;
+
+            if (taken > slowThresholdNanos) {
+                testResults.RecordSlowOp(POCopType.INSERTS, inserted);
+            }
+            testResults.RecordLatency(POCopType.INSERTS, taken, inserted);
+            testResults.RecordOpsDone(POCopType.INSERTS, inserted);
+            free.put(batch);
+        }
+    }
+
+    /**
+     * Insert a batch, sending again whatever didn't get written and can be,
+     * as the workers do for their bulk writes
+     *
+     * @return how many records were inserted
+     */
+    private int insert(MongoCollection<BsonDocument> coll, List<WriteModel<BsonDocument>> writes)
+            throws InterruptedException {
+        POCBulkWrite bulkWrite = new POCBulkWrite(writes, false, POCopType.UPDATES);
+        while (!bulkWrite.done()) {
+            try {
+                bulkWrite.succeeded(coll.bulkWrite(bulkWrite.pending(), bulkWrite.options()));
+            } catch (MongoException e) {
+                bulkWrite.failed(e, testResults, testOpts.debug);
+                if (!bulkWrite.done()) {
+                    Thread.sleep(bulkWrite.backoffMillis());
+                }
+            }
+        }
+        if (bulkWrite.failedAt != 0) {
+            testResults.RecordRecovery(System.nanoTime() - bulkWrite.failedAt);
+        }
+        return bulkWrite.inserted;
+    }
+}
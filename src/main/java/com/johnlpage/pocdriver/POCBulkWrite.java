@@ -0,0 +1,242 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * One batch of writes from when it is first sent until all of it has been
+ * written or given up on. Whichever driver sends it, each reply or failure is
+ * handed to succeeded() or failed(), and whatever pending() still holds is
+ * sent again after backoffMillis() until done(). Only writes that failed for
+ * a reason that can pass, such as a failover, are sent again and no more than
+ * MAX_ATTEMPTS times, anything else is dropped and counted as an error.
+ */
+class POCBulkWrite {
+
+    static final int DUPLICATE_KEY = 11000;
+    // The driver sends each type of write in an unordered batch separately,
+    // a workflow that updates what it just inserted needs them kept in order
+    static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+    static final BulkWriteOptions ORDERED = new BulkWriteOptions().ordered(true);
+
+    static final int MAX_ATTEMPTS = 10;
+    // Doubling from the first up to the longest, together long enough to
+    // ride out an election
+    static final long FIRST_BACKOFF_MS = 100;
+    static final long MAX_BACKOFF_MS = 5000;
+
+    // Server errors a write can succeed after, as the driver's retryable
+    // writes have them: shutting down, stepping down, not primary or the
+    // network to another member
+    private static final Set<Integer> RETRYABLE_CODES = new HashSet<Integer>(Arrays.asList(
+            6, 7, 89, 91, 189, 262, 9001, 10107, 11600, 11602, 13435, 13436));
+
+    final List<WriteModel<BsonDocument>> batch;
+    private final boolean ordered;
+    // The bulk result only has one matched count for all the updates in a
+    // batch so a batch only holds one type of update, UPDATES or ARRAYUPDATES
+    final POCopType updateType;
+    private List<WriteModel<BsonDocument>> pending;
+
+    // When it was first sent, not built, so time spent waiting to be sent
+    // only shows in the open loop figures
+    long starttime = 0;
+    // When the first failure was, 0 if there wasn't one
+    long failedAt = 0;
+    private int attempts = 0;
+    int inserted = 0;
+    int matched = 0;
+    int deleted = 0;
+
+    // Set by a worker - when an open loop meant the batch to start and the
+    // worker's sequence when it was sent, all its records below that are
+    // written once this is done
+    long intendedStart;
+    int lastSequence;
+    // Set by the worker once flushed, under its lock
+    boolean finished = false;
+
+    POCBulkWrite(List<WriteModel<BsonDocument>> batch, boolean ordered, POCopType updateType) {
+        this.batch = batch;
+        this.ordered = ordered;
+        this.updateType = updateType;
+        pending = batch;
+    }
+
+    BulkWriteOptions options() {
+        return ordered ? ORDERED : UNORDERED;
+    }
+
+    // Called as each attempt is sent
+    void sending() {
+        if (starttime == 0) {
+            starttime = System.nanoTime();
+        }
+    }
+
+    List<WriteModel<BsonDocument>> pending() {
+        return pending;
+    }
+
+    boolean done() {
+        return pending.isEmpty();
+    }
+
+    // How long to wait before sending pending() again
+    long backoffMillis() {
+        return Math.min(FIRST_BACKOFF_MS << Math.min(attempts - 1, 16), MAX_BACKOFF_MS);
+    }
+
+    void succeeded(BulkWriteResult result) {
+        inserted += result.getInsertedCount();
+        matched += result.getMatchedCount();
+        deleted += result.getDeletedCount();
+        pending = Collections.emptyList();
+    }
+
+    /**
+     * Work out from t what needs sending again and what is given up on, any
+     * error is reported and each write given up on counted as an error
+     */
+    void failed(Throwable t, POCTestResults testResults, boolean debug) {
+        attempts++;
+        List<WriteModel<BsonDocument>> resend;
+        List<WriteModel<BsonDocument>> dropped = new ArrayList<WriteModel<BsonDocument>>();
+        if (t instanceof MongoBulkWriteException) {
+            // Some of the batch was written, the errors say which wasn't
+            MongoBulkWriteException e = (MongoBulkWriteException) t;
+            inserted += e.getWriteResult().getInsertedCount();
+            matched += e.getWriteResult().getMatchedCount();
+            deleted += e.getWriteResult().getDeletedCount();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                WriteModel<BsonDocument> op = pending.get(error.getIndex());
+                if (alreadyInserted(op, error)) {
+                    inserted++;
+                } else if (!retryable(error)) {
+                    dropped.add(op);
+                }
+            }
+            resend = failedWrites(pending, e.getWriteErrors(), ordered);
+            if (!resend.isEmpty() || !dropped.isEmpty() || e.getWriteConcernError() != null) {
+                report(t, debug);
+            }
+        } else {
+            // We can't tell what was written so send it all again if it can be
+            report(t, debug);
+            if (retryable(t)) {
+                resend = pending;
+            } else {
+                resend = Collections.emptyList();
+                dropped.addAll(pending);
+            }
+        }
+        if (!resend.isEmpty() && attempts >= MAX_ATTEMPTS) {
+            System.out.format("Giving up on %d writes after %d attempts\n", resend.size(), attempts);
+            dropped.addAll(resend);
+            resend = Collections.emptyList();
+        }
+        recordDropped(testResults, dropped, updateType);
+        pending = resend;
+        if (!pending.isEmpty()) {
+            if (failedAt == 0) {
+                failedAt = System.nanoTime();
+            }
+            testResults.RecordBulkRetry(pending.size());
+        }
+    }
+
+    private static void report(Throwable t, boolean debug) {
+        System.out.println(t.getClass().getSimpleName() + ": " + t.getMessage());
+        if (debug)
+            t.printStackTrace();
+    }
+
+    /**
+     * A failure the same write can succeed after, the server changing
+     * primary or going away for a while, rather than one in the write itself
+     * such as failing validation or being too large
+     */
+    static boolean retryable(Throwable t) {
+        if (t instanceof MongoSocketException || t instanceof MongoTimeoutException
+                || t instanceof MongoNotPrimaryException || t instanceof MongoNodeIsRecoveringException) {
+            return true;
+        }
+        if (t instanceof MongoException) {
+            MongoException e = (MongoException) t;
+            return e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)
+                    || RETRYABLE_CODES.contains(e.getCode());
+        }
+        return false;
+    }
+
+    static boolean retryable(BulkWriteError error) {
+        return RETRYABLE_CODES.contains(error.getCode());
+    }
+
+    /**
+     * The writes from a bulk write that need sending again, in their original
+     * order. Inserts that are already there and writes that failed in a way
+     * they always will are left out.
+     *
+     * @param errors  from the MongoBulkWriteException, indexed into bulkWriter
+     * @param ordered if so the server stopped at the error, nothing after it was tried
+     */
+    static List<WriteModel<BsonDocument>> failedWrites(List<WriteModel<BsonDocument>> bulkWriter,
+                                                       List<BulkWriteError> errors, boolean ordered) {
+        List<WriteModel<BsonDocument>> failed = new ArrayList<WriteModel<BsonDocument>>(errors.size());
+        for (BulkWriteError error : errors) {
+            WriteModel<BsonDocument> op = bulkWriter.get(error.getIndex());
+            if (!alreadyInserted(op, error) && retryable(error)) {
+                failed.add(op);
+            }
+        }
+        if (ordered && !errors.isEmpty()) {
+            int last = errors.get(errors.size() - 1).getIndex();
+            failed.addAll(bulkWriter.subList(last + 1, bulkWriter.size()));
+        }
+        return failed;
+    }
+
+    /**
+     * A duplicate key on one of our inserts means an earlier attempt wrote it
+     * but we never got the reply, such as when the primary went away
+     */
+    static boolean alreadyInserted(WriteModel<BsonDocument> op, BulkWriteError error) {
+        return error.getCode() == DUPLICATE_KEY && op instanceof InsertOneModel;
+    }
+
+    // Count an error for each write given up on, against its kind of op
+    static void recordDropped(POCTestResults testResults, List<WriteModel<BsonDocument>> dropped,
+                              POCopType updateType) {
+        for (WriteModel<BsonDocument> op : dropped) {
+            if (op instanceof InsertOneModel) {
+                testResults.RecordError(POCopType.INSERTS);
+            } else if (op instanceof DeleteOneModel || op instanceof DeleteManyModel) {
+                testResults.RecordError(POCopType.DELETES);
+            } else {
+                testResults.RecordError(updateType);
+            }
+        }
+    }
+}
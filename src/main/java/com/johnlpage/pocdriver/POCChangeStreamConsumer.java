@@ -0,0 +1,143 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Follows a change stream on the test collection while the workers write
+ * to it. Every event is counted as a changeevent and its latency is how
+ * long after the worker stamped the record with its WRITE_TIME it arrived,
+ * so it includes the time the write spent in the worker's batch.
+ */
+public class POCChangeStreamConsumer implements Runnable {
+
+    // How long the server holds an empty getMore, and so how long stop() can take
+    private static final long MAX_AWAIT_MILLIS = 1000;
+    // Once the workers are done, how long to keep reading if we're behind
+    private static final long DRAIN_SECONDS = 10;
+
+    private final MongoCollection<Document> coll;
+    private final POCTestResults testResults;
+    private final CountDownLatch opened;
+    private final long slowThresholdNanos;
+    private volatile boolean stopping = false;
+    private BsonDocument resumeToken = null;
+
+    /**
+     * @param opened counted down once the stream is open, or failed to
+     */
+    POCChangeStreamConsumer(MongoClient mongoClient, POCTestOptions testOpts, POCTestResults testResults,
+                            int consumerID, CountDownLatch opened) {
+        String collectionName = testOpts.numcollections > 1
+                ? testOpts.collectionName + (consumerID % testOpts.numcollections) : testOpts.collectionName;
+        coll = mongoClient.getDatabase(testOpts.databaseName).getCollection(collectionName);
+        this.testResults = testResults;
+        this.opened = opened;
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(testOpts.slowThreshold);
+    }
+
+    /**
+     * Read what's left, for up to DRAIN_SECONDS, then finish
+     */
+    void stop() {
+        stopping = true;
+    }
+
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> open() {
+        if (resumeToken == null) {
+            return coll.watch(RawBsonDocument.class)
+                    .maxAwaitTime(MAX_AWAIT_MILLIS, TimeUnit.MILLISECONDS).iterator();
+        }
+        return coll.watch(RawBsonDocument.class).resumeAfter(resumeToken)
+                .maxAwaitTime(MAX_AWAIT_MILLIS, TimeUnit.MILLISECONDS).iterator();
+    }
+
+    public void run() {
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor;
+        try {
+            cursor = open();
+        } catch (MongoException e) {
+            // Most likely a standalone server, which has no change streams
+            System.out.println("Cannot open a change stream on " + coll.getNamespace() + ": " + e.getMessage());
+            return;
+        } finally {
+            opened.countDown();
+        }
+
+        long drainEnd = Long.MAX_VALUE;
+        try {
+            while (System.nanoTime() < drainEnd) {
+                ChangeStreamDocument<RawBsonDocument> event;
+                try {
+                    event = cursor.tryNext();
+                } catch (MongoException e) {
+                    testResults.RecordError(POCopType.CHANGEEVENTS);
+                    System.out.println("Change stream error: " + e.getMessage());
+                    cursor.close();
+                    cursor = open();
+                    continue;
+                }
+                if (event == null) {
+                    if (stopping) {
+                        break;
+                    }
+                    continue;
+                }
+                if (stopping && drainEnd == Long.MAX_VALUE) {
+                    drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+                }
+                resumeToken = event.getResumeToken();
+                recordEvent(event);
+            }
+        } catch (MongoException e) {
+            System.out.println("Lost the change stream on " + coll.getNamespace() + ": " + e.getMessage());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void recordEvent(ChangeStreamDocument<RawBsonDocument> event) {
+        long now = TestRecord.nowMicros();
+        testResults.RecordOpsDone(POCopType.CHANGEEVENTS, 1);
+        Long written = writeTime(event);
+        if (written == null) {
+            // Not one of ours, or a delete
+            return;
+        }
+        long lag = Math.max(0, now - written) * 1000;
+        if (lag > slowThresholdNanos) {
+            testResults.RecordSlowOp(POCopType.CHANGEEVENTS, 1);
+        }
+        testResults.RecordLatency(POCopType.CHANGEEVENTS, lag, 1);
+    }
+
+    /**
+     * The WRITE_TIME of an insert or replace is in the document, an update
+     * sets a new one alongside its change
+     */
+    static Long writeTime(ChangeStreamDocument<? extends BsonDocument> event) {
+        BsonValue ts = null;
+        if (event.getFullDocument() != null) {
+            ts = event.getFullDocument().get(TestRecord.WRITE_TIME);
+        } else {
+            UpdateDescription update = event.getUpdateDescription();
+            if (update != null && update.getUpdatedFields() != null) {
+                ts = update.getUpdatedFields().get(TestRecord.WRITE_TIME);
+            }
+        }
+        return ts != null && ts.isInt64() ? ts.asInt64().getValue() : null;
+    }
+}
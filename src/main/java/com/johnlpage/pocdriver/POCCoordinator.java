@@ -0,0 +1,208 @@
+package com.johnlpage.pocdriver;
+
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Runs a test across several agent processes rather than in this one. Each
+ * agent is sent our options and its own range of worker IDs, they all start
+ * together and send back what they did every second which is merged into
+ * one set of results for the reporter.
+ */
+public class POCCoordinator {
+
+    static final int MAGIC = 0x504F4341; // POCA
+    static final int VERSION = 8;
+    static final int DEFAULT_PORT = 27777;
+
+    // Agent to coordinator
+    static final byte READY = 1;
+    static final byte STATS = 2;
+    static final byte DONE = 3;
+    // Coordinator to agent
+    static final byte START = 4;
+
+    private POCTestOptions testOpts;
+    private POCTestResults testResults;
+    private List<AgentLink> agents = new ArrayList<AgentLink>();
+
+    POCCoordinator(POCTestOptions testOpts, POCTestResults testResults) {
+        this.testOpts = testOpts;
+        this.testResults = testResults;
+    }
+
+    /**
+     * Accept the agents, hand each its workload and wait for them all to be
+     * connected to MongoDB and ready to go
+     */
+    void waitForAgents() throws IOException {
+        // Only local agents unless --coordinatorbind opens it up, anyone who
+        // connects is sent our options
+        ServerSocket server = new ServerSocket(testOpts.coordinatorPort, 50,
+                InetAddress.getByName(testOpts.coordinatorBind));
+        try {
+            System.out.format("Waiting for %d agents on %s port %d\n", testOpts.coordinatorAgents,
+                    testOpts.coordinatorBind, testOpts.coordinatorPort);
+            if (!withoutCredentials(testOpts.connectionDetails).equals(testOpts.connectionDetails)) {
+                System.out.println("The user and password in -c are not sent to agents, give each its own -c");
+            }
+            for (int a = 0; a < testOpts.coordinatorAgents; a++) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                AgentLink agent = new AgentLink(a, socket);
+                agents.add(agent);
+                int threadIdStart = testOpts.threadIdStart + a * testOpts.numThreads;
+                writeConfig(agent.out, testOpts, threadIdStart);
+                agent.out.flush();
+                System.out.format("Agent %d connected from %s, running workers %d to %d\n", a,
+                        socket.getRemoteSocketAddress(), threadIdStart, threadIdStart + testOpts.numThreads - 1);
+            }
+        } finally {
+            server.close();
+        }
+        for (AgentLink agent : agents) {
+            if (agent.in.readByte() != READY) {
+                throw new IOException("Agent " + agent.id + " did not get ready");
+            }
+        }
+    }
+
+    /**
+     * Start every agent and collect their results until they have all
+     * finished or gone away
+     */
+    void runAgents() throws IOException, InterruptedException {
+        for (AgentLink agent : agents) {
+            agent.out.writeByte(START);
+            agent.out.flush();
+        }
+        List<Thread> readers = new ArrayList<Thread>();
+        for (AgentLink agent : agents) {
+            Thread reader = new Thread(agent, "agent-" + agent.id);
+            reader.start();
+            readers.add(reader);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+    }
+
+    void close() {
+        for (AgentLink agent : agents) {
+            agent.close();
+        }
+    }
+
+    static void writeConfig(DataOutputStream out, POCTestOptions testOpts, int threadIdStart) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(threadIdStart);
+        out.writeBoolean(testOpts.sharded);
+        out.writeInt(testOpts.numShards);
+        out.writeBoolean(testOpts.preSplit);
+        out.writeInt(testOpts.commandLine.length);
+        String connection = withoutCredentials(testOpts.connectionDetails);
+        for (String arg : testOpts.commandLine) {
+            out.writeUTF(arg.replace(testOpts.connectionDetails, connection));
+        }
+    }
+
+    /**
+     * The connection string with any user and password taken out
+     */
+    static String withoutCredentials(String connectionDetails) {
+        return connectionDetails.replaceFirst("^(mongodb(\\+srv)?://)[^@/]*@", "$1");
+    }
+
+    /**
+     * Read one interval of an agent's stats, written by POCAgent.sendInterval,
+     * into our results
+     */
+    static void readInterval(DataInputStream in, POCTestResults testResults, boolean corrected) throws IOException {
+        testResults.MergeRetries(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        testResults.MergeTransactionRetries(in.readLong());
+        for (POCopType o : POCopType.values()) {
+            long opsDone = in.readLong();
+            long slowOps = in.readLong();
+            long errors = in.readLong();
+            Histogram latency = readHistogram(in);
+            Histogram correctedLatency = corrected ? readHistogram(in) : null;
+            testResults.MergeInterval(o, opsDone, slowOps, errors, latency, correctedLatency);
+        }
+    }
+
+    static void writeHistogram(DataOutputStream out, Histogram latency) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(latency.getNeededByteBufferCapacity());
+        int length = latency.encodeIntoCompressedByteBuffer(buffer);
+        out.writeInt(length);
+        out.write(buffer.array(), 0, length);
+    }
+
+    private static Histogram readHistogram(DataInputStream in) throws IOException {
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        try {
+            return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(encoded), POCTestResults.MAX_LATENCY_US);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad latency histogram: " + e.getMessage());
+        }
+    }
+
+    private class AgentLink implements Runnable {
+        private int id;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        AgentLink(int id, Socket socket) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    byte message = in.readByte();
+                    if (message == DONE) {
+                        break;
+                    } else if (message == STATS) {
+                        readInterval(in, testResults, testOpts.openLoop);
+                    } else {
+                        throw new IOException("Unexpected message " + message);
+                    }
+                }
+            } catch (EOFException e) {
+                System.out.println("Agent " + id + " went away before it finished");
+            } catch (IOException e) {
+                System.out.println("Agent " + id + ": " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -11,6 +11,8 @@ import org.bson.codecs.DocumentCodec;
 import org.bson.codecs.EncoderContext;
 import org.bson.io.BasicOutputBuffer;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.logging.LogManager;
 
 public class POCDriver {
@@ -26,19 +28,43 @@ public class POCDriver {
             if (testOpts.helpOnly) {
                 return;
             }
+            // Everything else comes from the coordinator
+            if (testOpts.coordinatorAddress != null) {
+                runAgent(testOpts.coordinatorAddress, testOpts.connectionGiven ? testOpts.connectionDetails : null);
+                return;
+            }
 
             if (testOpts.arrayupdates > 0 && (testOpts.arraytop < 1 || testOpts.arraynext < 1)) {
                 System.out.println("You must specify an array size to update arrays");
                 return;
             }
+            if (testOpts.indexqueries + testOpts.indexrangequeries > 0 && testOpts.secondaryidx < 1) {
+                System.out.println("You must say which fields are indexed with -x to run index queries");
+                return;
+            }
+            if (testOpts.openLoop && testOpts.opsPerSecond < 1) {
+                System.out.println("You must specify a target rate with -q to use an open loop");
+                return;
+            }
+            if (testOpts.deferIndexes && testOpts.loadDocs < 1) {
+                System.out.println("Indexes can only be deferred until after a --load");
+                return;
+            }
             if (testOpts.printOnly) {
                 printTestDocument(testOpts);
                 return;
             }
+            if (testOpts.logToCsv != null) {
+                POCTestLog.binaryToCsv(testOpts.logToCsv, new PrintWriter(System.out));
+                return;
+            }
 
         } catch (ParseException e) {
             System.err.println(e.getMessage());
             return;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
         }
 
         POCTestResults testResults = new POCTestResults();
@@ -46,6 +72,23 @@ public class POCDriver {
         runner.RunLoad(testOpts, testResults);
     }
 
+    private static void runAgent(String coordinator, String connectionDetails) {
+        POCAgent agent;
+        POCTestOptions agentOpts;
+        try {
+            agent = POCAgent.connect(coordinator);
+            agentOpts = agent.readConfig(connectionDetails);
+        } catch (IOException e) {
+            System.err.println("Cannot join the coordinator at " + coordinator + ": " + e.getMessage());
+            return;
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        LoadRunner runner = new LoadRunner(agentOpts);
+        runner.RunAgent(agentOpts, agent);
+    }
+
     private static void printTestDocument(final POCTestOptions testOpts) {
         //Sets up sample data don't remove
         TestRecord tr;
@@ -0,0 +1,156 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * With --drivermetrics, listens to the driver so a report can say how much
+ * of an op's latency was the server and network and how much was waiting
+ * for a pooled connection. The listeners are called on the worker and driver
+ * threads, what's read out is for the reporter thread only.
+ */
+class POCDriverMetrics implements CommandListener, ConnectionPoolListener {
+
+    // Round trip of each command from sending it to the reply, by command name
+    private final ConcurrentHashMap<String, Recorder> roundTrips = new ConcurrentHashMap<String, Recorder>();
+    private final Map<String, Histogram> intervalRoundTrips = new TreeMap<String, Histogram>();
+    private final LongAdder failedCommands = new LongAdder();
+
+    // From asking the pool for a connection to getting one. The sync driver
+    // enters and leaves the wait queue on the thread that wants it, the
+    // async driver may not so those waits aren't timed.
+    private final Recorder checkoutWait = new Recorder(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+    private Histogram intervalCheckoutWait;
+    private final ThreadLocal<Long> waitStarted = new ThreadLocal<Long>();
+
+    private final ConcurrentHashMap<ServerId, Integer> maxPoolSizes = new ConcurrentHashMap<ServerId, Integer>();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder checkedOut = new LongAdder();
+    private final LongAdder waiting = new LongAdder();
+
+    public void commandStarted(CommandStartedEvent event) {
+    }
+
+    public void commandSucceeded(CommandSucceededEvent event) {
+        recordRoundTrip(event.getCommandName(), event.getElapsedTime(TimeUnit.MICROSECONDS));
+    }
+
+    public void commandFailed(CommandFailedEvent event) {
+        failedCommands.increment();
+        recordRoundTrip(event.getCommandName(), event.getElapsedTime(TimeUnit.MICROSECONDS));
+    }
+
+    private void recordRoundTrip(String command, long micros) {
+        Recorder recorder = roundTrips.get(command);
+        if (recorder == null) {
+            recorder = new Recorder(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+            Recorder existing = roundTrips.putIfAbsent(command, recorder);
+            if (existing != null) {
+                recorder = existing;
+            }
+        }
+        recorder.recordValue(Math.min(Math.max(micros, 0), POCTestResults.MAX_LATENCY_US));
+    }
+
+    public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+        maxPoolSizes.put(event.getServerId(), event.getSettings().getMaxSize());
+    }
+
+    public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+        maxPoolSizes.remove(event.getServerId());
+    }
+
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        checkedOut.increment();
+    }
+
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOut.decrement();
+    }
+
+    public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+        waiting.increment();
+        waitStarted.set(System.nanoTime());
+    }
+
+    public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+        waiting.decrement();
+        Long started = waitStarted.get();
+        if (started != null) {
+            waitStarted.remove();
+            long micros = (System.nanoTime() - started) / 1000;
+            checkoutWait.recordValue(Math.min(micros, POCTestResults.MAX_LATENCY_US));
+        }
+    }
+
+    public void connectionAdded(ConnectionAddedEvent event) {
+        connections.increment();
+    }
+
+    public void connectionRemoved(ConnectionRemovedEvent event) {
+        connections.decrement();
+    }
+
+    /**
+     * The round trips of each command since this was last called, by name
+     */
+    Map<String, Histogram> GetIntervalRoundTrips() {
+        for (Map.Entry<String, Recorder> entry : roundTrips.entrySet()) {
+            Histogram previous = intervalRoundTrips.get(entry.getKey());
+            intervalRoundTrips.put(entry.getKey(), entry.getValue().getIntervalHistogram(previous));
+        }
+        return intervalRoundTrips;
+    }
+
+    Histogram GetIntervalCheckoutWait() {
+        intervalCheckoutWait = checkoutWait.getIntervalHistogram(intervalCheckoutWait);
+        return intervalCheckoutWait;
+    }
+
+    long GetFailedCommands() {
+        return failedCommands.sum();
+    }
+
+    // Across the pools of every server we talk to
+    long GetMaxPoolSize() {
+        long total = 0;
+        for (int size : maxPoolSizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    long GetConnections() {
+        return connections.sum();
+    }
+
+    long GetCheckedOut() {
+        return checkedOut.sum();
+    }
+
+    long GetWaiting() {
+        return waiting.sum();
+    }
+}
@@ -0,0 +1,81 @@
+package com.johnlpage.pocdriver;
+
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+
+/**
+ * Queries on the fields -x indexes, for values like the ones new records
+ * get so they find something. Each worker needs its own.
+ */
+class POCIndexQueries {
+
+    private final List<String> fields;
+    private final List<Integer> fieldNos = new ArrayList<Integer>();
+    // A Date equal to the millisecond almost never matches so equality
+    // queries stick to the number and text fields where there are any
+    private final List<Integer> equalityFields = new ArrayList<Integer>();
+    private final TestRecord values;
+    private final Random rng;
+
+    POCIndexQueries(POCTestOptions testOpts, Random rng) {
+        this.rng = rng;
+        values = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, 0, 0,
+                testOpts.NUMBER_SIZE, new int[]{0, 0}, testOpts.blobSize, rng);
+        List<String> all = values.listFields();
+        fields = all.subList(0, Math.min(testOpts.secondaryidx, all.size()));
+        for (int i = 0; i < fields.size(); i++) {
+            String field = fields.get(i);
+            int fieldNo = TestRecord.fieldNo(field);
+            fieldNos.add(fieldNo);
+            if (!TestRecord.isDateField(fieldNo)) {
+                equalityFields.add(i);
+            }
+        }
+        if (equalityFields.isEmpty()) {
+            for (int i = 0; i < fields.size(); i++) {
+                equalityFields.add(i);
+            }
+        }
+    }
+
+    /**
+     * @return which indexed field to query, by its position in -x order
+     */
+    int pickField(POCopType opType) {
+        if (opType == POCopType.INDEXQUERIES) {
+            return equalityFields.get(rng.nextInt(equalityFields.size()));
+        }
+        return rng.nextInt(fields.size());
+    }
+
+    Document filter(POCopType opType, int field) {
+        Object value = values.sampleValue(fieldNos.get(field));
+        if (opType == POCopType.INDEXQUERIES) {
+            return new Document(fields.get(field), value);
+        }
+        return new Document(fields.get(field), new Document("$gte", value));
+    }
+
+    /**
+     * Only the indexed field, so the index has all the query needs
+     */
+    Bson coveredProjection(int field) {
+        return fields(include(fields.get(field)), excludeId());
+    }
+
+    // In the index's order, so there's no sort stage
+    Bson sort(int field) {
+        return ascending(fields.get(field));
+    }
+}
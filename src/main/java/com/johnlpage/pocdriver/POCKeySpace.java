@@ -0,0 +1,134 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.descending;
+
+
+/**
+ * How many records every worker has, so with --globalreads an op can go to
+ * any worker's records rather than only its own. Workers publish their
+ * sequence once a batch is written, and the records of workers from
+ * earlier runs are found when it is made. Only this process's workers are
+ * kept up to date, agents don't see each other's new records.
+ */
+class POCKeySpace {
+
+    // Picks of a worker to try before going through them all
+    private static final int MAX_TRIES = 32;
+    private static final int BOUND_STEP = 1024;
+
+    // Records lowWater to highWater - 1 of each worker ID are there to be
+    // read, oldest first deletes move lowWater up
+    private final AtomicIntegerArray lowWater;
+    private final AtomicIntegerArray highWater;
+    // At least the largest highWater, only moved in steps so the workers
+    // aren't all writing it
+    private final AtomicInteger bound = new AtomicInteger();
+
+    POCKeySpace(int workers) {
+        lowWater = new AtomicIntegerArray(workers);
+        highWater = new AtomicIntegerArray(workers);
+    }
+
+    /**
+     * Find how far every worker ID already in coll goes, with room for ours
+     */
+    static POCKeySpace discover(MongoCollection<Document> coll, POCTestOptions testOpts) {
+        int lastWorker = -1;
+        Document last = coll.find().projection(include("_id")).sort(descending("_id")).first();
+        if (last != null && last.get("_id") instanceof Document) {
+            Integer w = ((Document) last.get("_id")).getInteger("w");
+            lastWorker = w == null ? -1 : w;
+        }
+        POCKeySpace keySpace = new POCKeySpace(Math.max(lastWorker + 1, testOpts.threadIdStart + testOpts.numThreads));
+        for (int w = 0; w <= lastWorker; w++) {
+            keySpace.publish(w, POCWorker.getHighestID(coll, w));
+            keySpace.deleted(w, POCWorker.getLowestID(coll, w));
+        }
+        return keySpace;
+    }
+
+    /**
+     * Called once a batch is written, the mark only goes up even if an async
+     * worker's batches finish out of order
+     *
+     * @param sequence all of the worker's records below this have been written
+     */
+    void publish(int workerID, int sequence) {
+        highWater.accumulateAndGet(workerID, sequence, Math::max);
+        int current = bound.get();
+        if (sequence > current) {
+            // If another worker moved it first we try again next time
+            bound.compareAndSet(current, (sequence / BOUND_STEP + 1) * BOUND_STEP);
+        }
+    }
+
+    /**
+     * Called as a worker deletes its oldest records
+     *
+     * @param from none of the worker's records below this are left
+     */
+    void deleted(int workerID, int from) {
+        lowWater.accumulateAndGet(workerID, from, Math::max);
+    }
+
+    int lowWater(int workerID) {
+        return lowWater.get(workerID);
+    }
+
+    int highWater(int workerID) {
+        return highWater.get(workerID);
+    }
+
+    private int live(int workerID) {
+        return Math.max(highWater.get(workerID) - lowWater.get(workerID), 0);
+    }
+
+    /**
+     * The _id of a record from any worker, each worker picked in proportion to
+     * how many live records it has and the record from its own working set as
+     * keyDist says
+     */
+    Document pickKey(KeyDistribution keyDist, Random rng, POCTestOptions testOpts) {
+        int workerID = pickWorker(rng);
+        int recordno = POCWorker.pickRecord(keyDist, rng, lowWater.get(workerID), highWater.get(workerID), testOpts);
+        return new Document("w", workerID).append("i", recordno);
+    }
+
+    int pickWorker(Random rng) {
+        int workers = highWater.length();
+        int max = bound.get();
+        if (max > 0) {
+            // Keep a random worker with a chance of its share of the largest
+            for (int tries = 0; tries < MAX_TRIES; tries++) {
+                int w = rng.nextInt(workers);
+                if (rng.nextInt(max) < live(w)) {
+                    return w;
+                }
+            }
+            // Only a few workers have records, go through them all
+            long total = 0;
+            for (int w = 0; w < workers; w++) {
+                total += live(w);
+            }
+            if (total > 0) {
+                long pick = (long) (rng.nextDouble() * total);
+                for (int w = 0; w < workers; w++) {
+                    pick -= live(w);
+                    if (pick < 0) {
+                        return w;
+                    }
+                }
+            }
+        }
+        return rng.nextInt(workers);
+    }
+}
@@ -0,0 +1,76 @@
+package com.johnlpage.pocdriver;
+
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+
+/**
+ * A set of latency recorders striped by thread so writers almost never share
+ * one, recording never allocates or locks. Values are in microseconds.
+ */
+public class POCLatencyRecorder {
+
+    private Recorder[] stripes;
+
+    // Only touched by the single reader when it drains the stripes
+    private Histogram[] stripeIntervals;
+    Histogram intervalLatency;
+    Histogram totalLatency;
+
+    // Histograms recorded somewhere else, such as by an agent process
+    private Histogram merged;
+
+    // Copies from the last drain for readers on other threads, such as
+    // the --metricsport endpoint
+    volatile Histogram publishedInterval;
+    volatile long publishedCount;
+    volatile double publishedTotalMicros;
+
+    POCLatencyRecorder(int numStripes) {
+        stripes = new Recorder[numStripes];
+        stripeIntervals = new Histogram[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Recorder(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+        }
+        intervalLatency = new Histogram(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+        totalLatency = new Histogram(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+    }
+
+    void record(int stripe, long micros, int howmany) {
+        stripes[stripe].recordValueWithCount(micros, howmany);
+    }
+
+    /**
+     * Add a histogram in to be picked up by the next drain, may be called
+     * from any thread
+     */
+    synchronized void add(Histogram latency) {
+        if (merged == null) {
+            merged = new Histogram(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+        }
+        merged.add(latency);
+    }
+
+    /**
+     * Swap out every stripe and merge what was recorded since the last call
+     * into intervalLatency and totalLatency - single reader only
+     */
+    void drain() {
+        intervalLatency.reset();
+        for (int i = 0; i < stripes.length; i++) {
+            stripeIntervals[i] = stripes[i].getIntervalHistogram(stripeIntervals[i]);
+            intervalLatency.add(stripeIntervals[i]);
+        }
+        synchronized (this) {
+            if (merged != null) {
+                intervalLatency.add(merged);
+                merged.reset();
+            }
+        }
+        totalLatency.add(intervalLatency);
+        publishedCount = totalLatency.getTotalCount();
+        publishedTotalMicros = totalLatency.getMean() * publishedCount;
+        publishedInterval = intervalLatency.copy();
+    }
+}
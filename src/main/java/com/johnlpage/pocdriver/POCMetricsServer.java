@@ -0,0 +1,165 @@
+package com.johnlpage.pocdriver;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+
+/**
+ * With --metricsport, serves the test results at /metrics in the Prometheus
+ * text format so a run can be graphed while it goes. Counts are read from
+ * the same adders the reporter reads and latencies from the copies the
+ * reporter leaves after each interval, so a scrape costs the workers nothing
+ * and doesn't take anything from the reports.
+ */
+class POCMetricsServer implements HttpHandler {
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99, 0.999};
+
+    private final POCTestResults testResults;
+    private final POCTestOptions testOpts;
+    private HttpServer server;
+
+    // Ops per second are worked out over at least a second between scrapes
+    private long[] prevOps = new long[POCopType.values().length];
+    private long prevNanos;
+    private double[] opsPerSecond = new double[POCopType.values().length];
+
+    POCMetricsServer(POCTestResults testResults, POCTestOptions testOpts) {
+        this.testResults = testResults;
+        this.testOpts = testOpts;
+        prevNanos = System.nanoTime();
+    }
+
+    /**
+     * @param port 0 for any free one
+     */
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this);
+        // Scrapes are answered one at a time on the server's own thread
+        server.setExecutor(null);
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    synchronized String render() {
+        StringBuilder metrics = new StringBuilder();
+        long now = System.nanoTime();
+        long[] ops = new long[prevOps.length];
+        for (POCopType o : POCopType.values()) {
+            ops[o.ordinal()] = testResults.GetOpsDone(o);
+        }
+        if (now - prevNanos >= 1000000000L) {
+            double seconds = (now - prevNanos) / 1e9;
+            for (int i = 0; i < ops.length; i++) {
+                opsPerSecond[i] = (ops[i] - prevOps[i]) / seconds;
+            }
+            prevOps = ops;
+            prevNanos = now;
+        }
+
+        header(metrics, "pocdriver_elapsed_seconds", "gauge", "Seconds since the test started");
+        sample(metrics, "pocdriver_elapsed_seconds", null, testResults.GetSecondsElapsed());
+
+        header(metrics, "pocdriver_ops_per_second", "gauge", "Ops completed per second since the last scrape");
+        for (POCopType o : POCopType.values()) {
+            sample(metrics, "pocdriver_ops_per_second", label(o), opsPerSecond[o.ordinal()]);
+        }
+        header(metrics, "pocdriver_ops_total", "counter", "Ops completed");
+        for (POCopType o : POCopType.values()) {
+            sample(metrics, "pocdriver_ops_total", label(o), ops[o.ordinal()]);
+        }
+        header(metrics, "pocdriver_slow_ops_total", "counter",
+                "Ops taking longer than " + testOpts.slowThreshold + " milliseconds");
+        for (POCopType o : POCopType.values()) {
+            sample(metrics, "pocdriver_slow_ops_total", label(o), testResults.GetSlowOps(o));
+        }
+        header(metrics, "pocdriver_errors_total", "counter", "Ops that failed");
+        for (POCopType o : POCopType.values()) {
+            sample(metrics, "pocdriver_errors_total", label(o), testResults.GetErrors(o));
+        }
+
+        header(metrics, "pocdriver_latency_seconds", "summary",
+                "Op latency, quantiles over the last report interval");
+        for (POCopType o : POCopType.values()) {
+            summary(metrics, "pocdriver_latency_seconds", o, testResults.GetPublishedLatency(o));
+        }
+        if (testOpts.openLoop) {
+            header(metrics, "pocdriver_corrected_latency_seconds", "summary",
+                    "Op latency from when the open loop schedule meant to send it, quantiles over the last report interval");
+            for (POCopType o : POCopType.values()) {
+                summary(metrics, "pocdriver_corrected_latency_seconds", o, testResults.GetPublishedCorrectedLatency(o));
+            }
+        }
+
+        header(metrics, "pocdriver_bulk_retries_total", "counter", "Bulk writes sent again after a failure");
+        sample(metrics, "pocdriver_bulk_retries_total", null, testResults.GetBulkRetries());
+        header(metrics, "pocdriver_transaction_retries_total", "counter",
+                "Transactions aborted by a transient error and run again");
+        sample(metrics, "pocdriver_transaction_retries_total", null, testResults.GetTransactionRetries());
+        return metrics.toString();
+    }
+
+    private static String label(POCopType o) {
+        return "op=\"" + o + "\"";
+    }
+
+    private static void header(StringBuilder metrics, String name, String type, String help) {
+        metrics.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        metrics.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder metrics, String name, String labels, double value) {
+        metrics.append(name);
+        if (labels != null) {
+            metrics.append('{').append(labels).append('}');
+        }
+        metrics.append(' ');
+        if (Double.isNaN(value)) {
+            metrics.append("NaN");
+        } else if (value == Math.rint(value)) {
+            metrics.append((long) value);
+        } else {
+            metrics.append(String.format(Locale.ROOT, "%.6f", value));
+        }
+        metrics.append('\n');
+    }
+
+    private static void summary(StringBuilder metrics, String name, POCopType o, POCLatencyRecorder latency) {
+        Histogram interval = latency.publishedInterval;
+        for (double q : QUANTILES) {
+            double value = Double.NaN;
+            if (interval != null && interval.getTotalCount() > 0) {
+                value = interval.getValueAtPercentile(q * 100) / 1e6;
+            }
+            sample(metrics, name, label(o) + ",quantile=\"" + q + "\"", value);
+        }
+        sample(metrics, name + "_sum", label(o), latency.publishedTotalMicros / 1e6);
+        sample(metrics, name + "_count", label(o), latency.publishedCount);
+    }
+}
@@ -0,0 +1,222 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.or;
+
+
+/**
+ * Splits a sharded collection where each worker's new records will start and
+ * moves each worker's range to the shard it writes to, the same placement
+ * POCWorker.ReviewShards makes. Doing it for every worker up front, a few
+ * at a time, means the first inserts are already spread over the cluster
+ * and starting hundreds of workers doesn't queue them all behind each other.
+ */
+public class POCPreSplitter {
+
+    private static final int MAX_ATTEMPTS = 20;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    private MongoClient mongoClient;
+    private POCTestOptions testOpts;
+    private String namespace;
+
+    POCPreSplitter(MongoClient mongoClient, POCTestOptions testOpts) {
+        this.mongoClient = mongoClient;
+        this.testOpts = testOpts;
+        namespace = testOpts.databaseName + "." + testOpts.collectionName;
+    }
+
+    /**
+     * Split and place the ranges of workers firstWorker to
+     * firstWorker + workers - 1, returning once they are all where they go
+     *
+     * @return false if any range couldn't be split or moved, the workers
+     * then place their own as they start
+     */
+    boolean run(int firstWorker, int workers) throws InterruptedException {
+        long start = System.nanoTime();
+        List<String> shardNames = new ArrayList<String>();
+        MongoCursor<Document> shards = mongoClient.getDatabase("config").getCollection("shards")
+                .find().sort(new Document("_id", 1)).iterator();
+        while (shards.hasNext()) {
+            shardNames.add(shards.next().getString("_id"));
+        }
+        shards.close();
+        if (shardNames.isEmpty()) {
+            System.out.println("Found no shards to pre-split over");
+            return false;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(shardNames.size());
+        boolean placed = true;
+        try {
+            final MongoCollection<Document> coll = mongoClient.getDatabase(testOpts.databaseName)
+                    .getCollection(testOpts.collectionName);
+            List<Future<Document>> splitPoints = new ArrayList<Future<Document>>(workers);
+            for (int w = firstWorker; w < firstWorker + workers; w++) {
+                final int workerID = w;
+                splitPoints.add(pool.submit(new Callable<Document>() {
+                    public Document call() {
+                        int sequence = POCWorker.getHighestID(coll, workerID);
+                        return new Document("_id", new Document("w", workerID).append("i", sequence + 1));
+                    }
+                }));
+            }
+
+            List<Callable<Boolean>> splits = new ArrayList<Callable<Boolean>>(workers);
+            for (Future<Document> splitPoint : splitPoints) {
+                final Document middle = splitPoint.get();
+                splits.add(new Callable<Boolean>() {
+                    public Boolean call() throws InterruptedException {
+                        return runAdminCommand(new Document("split", namespace).append("middle", middle),
+                                "is a boundary key of existing");
+                    }
+                });
+            }
+            placed = allDone(pool.invokeAll(splits));
+
+            // A shard only gives up one chunk at a time, so the moves off
+            // each shard go one after another and only different shards'
+            // moves run side by side
+            Map<String, List<Document>> movesByDonor = new TreeMap<String, List<Document>>();
+            Object uuid = collectionUUID();
+            for (int w = 0; w < workers; w++) {
+                Document find = splitPoints.get(w).get();
+                String shardName = shardNames.get((firstWorker + w) % shardNames.size());
+                String donor = chunkShard(find, uuid);
+                List<Document> donorMoves = movesByDonor.get(donor);
+                if (donorMoves == null) {
+                    donorMoves = new ArrayList<Document>();
+                    movesByDonor.put(donor, donorMoves);
+                }
+                donorMoves.add(new Document("moveChunk", namespace).append("find", find).append("to", shardName));
+            }
+            List<Callable<Boolean>> moves = new ArrayList<Callable<Boolean>>(movesByDonor.size());
+            for (final List<Document> donorMoves : movesByDonor.values()) {
+                moves.add(new Callable<Boolean>() {
+                    public Boolean call() throws InterruptedException {
+                        boolean moved = true;
+                        for (Document move : donorMoves) {
+                            moved &= runAdminCommand(move, "that chunk is already on that shard");
+                        }
+                        return moved;
+                    }
+                });
+            }
+            placed &= allDone(pool.invokeAll(moves));
+        } catch (ExecutionException e) {
+            System.out.println("Could not pre-split: " + e.getCause().getMessage());
+            return false;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.out.format("Pre-split %d worker ranges over %d shards in %.1f seconds\n", workers,
+                shardNames.size(), (System.nanoTime() - start) / 1e9);
+        printChunks(shardNames, collectionUUID());
+        return placed;
+    }
+
+    private static boolean allDone(List<Future<Boolean>> results) throws InterruptedException, ExecutionException {
+        boolean done = true;
+        for (Future<Boolean> result : results) {
+            done &= result.get();
+        }
+        return done;
+    }
+
+    // Newer servers key chunks by collection UUID rather than namespace
+    private Object collectionUUID() {
+        Document collection = mongoClient.getDatabase("config").getCollection("collections")
+                .find(eq("_id", namespace)).first();
+        return collection == null ? null : collection.get("uuid");
+    }
+
+    // Our collection's chunks, by namespace on older servers and by UUID on newer
+    private Bson chunksOf(Object uuid) {
+        return uuid == null ? eq("ns", namespace) : or(eq("ns", namespace), eq("uuid", uuid));
+    }
+
+    /**
+     * @return the shard the chunk starting at min is on, or "" if that can't
+     * be found and it is taken to be on the same one as the rest
+     */
+    private String chunkShard(Document min, Object uuid) {
+        Document chunk = mongoClient.getDatabase("config").getCollection("chunks")
+                .find(and(chunksOf(uuid), eq("min", min))).first();
+        return chunk == null ? "" : chunk.getString("shard");
+    }
+
+    /**
+     * Run a split or move, backing off and trying again while other splits
+     * and moves hold the locks it needs
+     *
+     * @param alreadyDone part of the error returned if it has been done before
+     * @return false if it couldn't be done
+     */
+    private boolean runAdminCommand(Document command, String alreadyDone) throws InterruptedException {
+        MongoDatabase admindb = mongoClient.getDatabase("admin");
+        long backoff = 50;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                admindb.runCommand(command);
+                return true;
+            } catch (MongoException e) {
+                String error = String.valueOf(e.getMessage());
+                if (error.contains(alreadyDone)) {
+                    return true;
+                }
+                if (attempt == MAX_ATTEMPTS) {
+                    System.out.println("Gave up on " + command.toJson() + ": " + error);
+                    return false;
+                }
+                if (testOpts.debug) {
+                    System.out.println(error);
+                }
+                TimeUnit.MILLISECONDS.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void printChunks(List<String> shardNames, Object uuid) {
+        Map<String, Integer> chunks = new TreeMap<String, Integer>();
+        for (String shardName : shardNames) {
+            chunks.put(shardName, 0);
+        }
+        int total = 0;
+        MongoCursor<Document> cursor = mongoClient.getDatabase("config").getCollection("chunks")
+                .find(chunksOf(uuid)).iterator();
+        while (cursor.hasNext()) {
+            String shard = cursor.next().getString("shard");
+            Integer count = chunks.get(shard);
+            chunks.put(shard, count == null ? 1 : count + 1);
+            total++;
+        }
+        cursor.close();
+        if (total > 0) {
+            System.out.println("Chunks per shard: " + chunks);
+        }
+    }
+}
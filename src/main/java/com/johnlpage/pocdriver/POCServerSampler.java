@@ -0,0 +1,244 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * With --serverstats, polls serverStatus and replSetGetStatus on every
+ * mongod and mongos once a second, so each report shows what the servers
+ * were doing alongside what the workers saw. Each server gets a client of
+ * its own, connected directly so secondaries and shard members answer too.
+ * Polling is run on a low priority thread, what's read out is for the
+ * reporter thread only.
+ */
+class POCServerSampler implements Runnable {
+
+    // What GetInterval() returns for each server, in this order. NaN where
+    // a server has no such thing, such as a cache on a mongos, or didn't
+    // answer this interval.
+    static final String[] STATS = {"insert_per_sec", "query_per_sec", "update_per_sec", "delete_per_sec",
+            "getmore_per_sec", "command_per_sec", "cache_used_pct", "cache_dirty_pct",
+            "read_tickets", "write_tickets", "repl_lag_s"};
+    private static final String[] OPCOUNTERS = {"insert", "query", "update", "delete", "getmore", "command"};
+    static final int CACHE_USED = 6;
+    static final int CACHE_DIRTY = 7;
+    static final int READ_TICKETS = 8;
+    static final int WRITE_TICKETS = 9;
+    static final int REPL_LAG = 10;
+
+    private final String[] names;
+    private final MongoClient[] clients;
+    private final Server[] servers;
+
+    private static class Server {
+        // The reading the interval started from and the latest one
+        long[] startCounters;
+        long startNanos;
+        long[] counters;
+        long nanos;
+        // Cache at the last reading, the fewest tickets left and the most
+        // lag at any reading this interval
+        double[] levels = newLevels();
+    }
+
+    POCServerSampler(String[] names, MongoClient[] clients) {
+        this.names = names;
+        this.clients = clients;
+        servers = new Server[names.length];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new Server();
+        }
+    }
+
+    /**
+     * Find the mongos and shard members or replica set members behind
+     * mongoClient and connect to each one
+     */
+    static POCServerSampler connect(MongoClient mongoClient, POCTestOptions testOpts) {
+        List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+        MongoDatabase admindb = mongoClient.getDatabase("admin");
+        if (testOpts.sharded) {
+            addresses.addAll(mongoClient.getServerAddressList());
+            MongoCursor<Document> shards = mongoClient.getDatabase("config").getCollection("shards").find().iterator();
+            while (shards.hasNext()) {
+                // Either host:port or setname/host:port,host:port
+                String hosts = shards.next().getString("host");
+                for (String host : hosts.substring(hosts.indexOf('/') + 1).split(",")) {
+                    addresses.add(new ServerAddress(host));
+                }
+            }
+        } else {
+            Document isMaster = admindb.runCommand(new Document("isMaster", 1));
+            if (isMaster.containsKey("hosts")) {
+                for (Object host : isMaster.get("hosts", List.class)) {
+                    addresses.add(new ServerAddress((String) host));
+                }
+                if (isMaster.containsKey("passives")) {
+                    for (Object host : isMaster.get("passives", List.class)) {
+                        addresses.add(new ServerAddress((String) host));
+                    }
+                }
+            } else {
+                addresses.addAll(mongoClient.getServerAddressList());
+            }
+        }
+
+        MongoClientURI uri = new MongoClientURI(testOpts.connectionDetails);
+        // Talking to one server at a time, whichever set it is in
+        MongoClientOptions options = MongoClientOptions.builder(uri.getOptions())
+                .requiredReplicaSetName(null)
+                .connectionsPerHost(1)
+                .serverSelectionTimeout(5000)
+                .build();
+        MongoCredential credential = uri.getCredentials();
+        String[] names = new String[addresses.size()];
+        MongoClient[] clients = new MongoClient[addresses.size()];
+        for (int i = 0; i < names.length; i++) {
+            ServerAddress address = addresses.get(i);
+            names[i] = address.toString();
+            clients[i] = credential == null ? new MongoClient(address, options)
+                    : new MongoClient(address, credential, options);
+        }
+        return new POCServerSampler(names, clients);
+    }
+
+    public void run() {
+        for (int i = 0; i < clients.length; i++) {
+            try {
+                MongoDatabase admindb = clients[i].getDatabase("admin");
+                Document serverStatus = admindb.runCommand(new Document("serverStatus", 1),
+                        ReadPreference.primaryPreferred());
+                Document replSetStatus = null;
+                if (serverStatus.containsKey("repl") && !"mongos".equals(serverStatus.getString("process"))) {
+                    replSetStatus = admindb.runCommand(new Document("replSetGetStatus", 1),
+                            ReadPreference.primaryPreferred());
+                }
+                record(i, System.nanoTime(), serverStatus, replSetStatus);
+            } catch (MongoException e) {
+                // Shows as no figures for this server until it answers again
+            }
+        }
+    }
+
+    /**
+     * @param replSetStatus null unless it's a replica set member
+     */
+    synchronized void record(int server, long nanos, Document serverStatus, Document replSetStatus) {
+        Server s = servers[server];
+        Document opcounters = (Document) serverStatus.get("opcounters");
+        long[] counters = new long[OPCOUNTERS.length];
+        for (int c = 0; c < counters.length; c++) {
+            counters[c] = ((Number) opcounters.get(OPCOUNTERS[c])).longValue();
+        }
+        if (s.startCounters == null) {
+            s.startCounters = counters;
+            s.startNanos = nanos;
+        }
+        s.counters = counters;
+        s.nanos = nanos;
+
+        Document wiredTiger = (Document) serverStatus.get("wiredTiger");
+        if (wiredTiger != null) {
+            Document cache = (Document) wiredTiger.get("cache");
+            double maximum = ((Number) cache.get("maximum bytes configured")).doubleValue();
+            s.levels[CACHE_USED] = ((Number) cache.get("bytes currently in the cache")).doubleValue() * 100 / maximum;
+            s.levels[CACHE_DIRTY] = ((Number) cache.get("tracked dirty bytes in the cache")).doubleValue() * 100 / maximum;
+            Document tickets = (Document) wiredTiger.get("concurrentTransactions");
+            if (tickets != null) {
+                s.levels[READ_TICKETS] = lowest(s.levels[READ_TICKETS],
+                        ((Number) ((Document) tickets.get("read")).get("available")).doubleValue());
+                s.levels[WRITE_TICKETS] = lowest(s.levels[WRITE_TICKETS],
+                        ((Number) ((Document) tickets.get("write")).get("available")).doubleValue());
+            }
+        }
+        if (replSetStatus != null) {
+            double lag = replicationLag(replSetStatus);
+            if (!Double.isNaN(lag)) {
+                s.levels[REPL_LAG] = Double.isNaN(s.levels[REPL_LAG]) ? lag : Math.max(s.levels[REPL_LAG], lag);
+            }
+        }
+    }
+
+    /**
+     * How many seconds of the primary's writes this member has still to apply
+     */
+    static double replicationLag(Document replSetStatus) {
+        Date primary = null;
+        Date self = null;
+        for (Object m : replSetStatus.get("members", List.class)) {
+            Document member = (Document) m;
+            if (Integer.valueOf(1).equals(member.get("state"))) {
+                primary = member.getDate("optimeDate");
+            }
+            if (Boolean.TRUE.equals(member.get("self"))) {
+                self = member.getDate("optimeDate");
+            }
+        }
+        if (primary == null || self == null) {
+            return Double.NaN;
+        }
+        return Math.max(primary.getTime() - self.getTime(), 0) / 1000.0;
+    }
+
+    private static double lowest(double sofar, double value) {
+        return Double.isNaN(sofar) ? value : Math.min(sofar, value);
+    }
+
+    private static double[] newLevels() {
+        double[] levels = new double[STATS.length];
+        Arrays.fill(levels, Double.NaN);
+        return levels;
+    }
+
+    String[] GetServers() {
+        return names;
+    }
+
+    /**
+     * For each server, its STATS since this was last called
+     */
+    synchronized double[][] GetInterval() {
+        double[][] interval = new double[servers.length][];
+        for (int i = 0; i < servers.length; i++) {
+            Server s = servers[i];
+            double[] stats = s.levels;
+            if (s.counters != null && s.nanos > s.startNanos) {
+                double seconds = (s.nanos - s.startNanos) / 1e9;
+                for (int c = 0; c < OPCOUNTERS.length; c++) {
+                    long done = s.counters[c] - s.startCounters[c];
+                    // Gone backwards if it restarted
+                    stats[c] = done >= 0 ? done / seconds : Double.NaN;
+                }
+            }
+            interval[i] = stats;
+            s.startCounters = s.counters;
+            s.startNanos = s.nanos;
+            s.levels = newLevels();
+            // Carry on from the last reading, a server that stopped
+            // answering has nothing for the next interval
+            s.counters = null;
+        }
+        return interval;
+    }
+
+    void close() {
+        for (MongoClient client : clients) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.johnlpage.pocdriver;
+
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+
+/**
+ * The -o stats file. It is opened once for the run and gets one record per
+ * report interval with the same figures for every op type, either as CSV
+ * with a header row or, with --binarylog, as fixed size binary records for
+ * long runs which --logtocsv turns back into the same CSV. With
+ * --serverstats each record ends with the figures for every server sampled.
+ * A CSV file is added to run after run, a binary one starts afresh.
+ */
+public class POCTestLog {
+
+    private static final int MAGIC = 0x504F4353; // POCS
+    private static final int VERSION = 3;
+
+    private PrintWriter csv;
+    private DataOutputStream binary;
+    private boolean corrected;
+    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+    POCTestLog(String filename, boolean binaryFormat, boolean corrected) throws IOException {
+        this(filename, binaryFormat, corrected, new String[0]);
+    }
+
+    /**
+     * @param servers names of the servers from POCServerSampler, in the order
+     *                logServers() will be given their figures
+     */
+    POCTestLog(String filename, boolean binaryFormat, boolean corrected, String[] servers) throws IOException {
+        this.corrected = corrected;
+        if (binaryFormat) {
+            binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+            binary.writeInt(MAGIC);
+            binary.writeInt(VERSION);
+            binary.writeBoolean(corrected);
+            binary.writeInt(POCopType.values().length);
+            for (POCopType o : POCopType.values()) {
+                binary.writeUTF(o.toString());
+            }
+            binary.writeInt(POCTestReporter.PERCENTILES.length);
+            for (double p : POCTestReporter.PERCENTILES) {
+                binary.writeDouble(p);
+            }
+            binary.writeInt(servers.length);
+            for (String server : servers) {
+                binary.writeUTF(server);
+            }
+        } else {
+            // Runs pointed at the same file follow on from each other, with
+            // one header at the top
+            boolean empty = new File(filename).length() == 0;
+            csv = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(filename, true), StandardCharsets.UTF_8)));
+            if (empty) {
+                String[] names = new String[POCopType.values().length];
+                for (POCopType o : POCopType.values()) {
+                    names[o.ordinal()] = o.toString();
+                }
+                writeCsvHeader(csv, names, POCTestReporter.PERCENTILES, corrected, servers);
+            }
+        }
+    }
+
+    private static void writeCsvHeader(PrintWriter csv, String[] opNames, double[] percentiles, boolean corrected,
+                                       String[] servers) {
+        csv.print("time,elapsed,inserted,bulk_retries,recovery_ms");
+        for (String o : opNames) {
+            csv.format(",%s_per_sec,%s_total,%s_errors,%s_fast_pct", o, o, o, o);
+            for (double p : percentiles) {
+                csv.format(",%s_p%s_ms", o, POCTestReporter.formatPercentile(p));
+            }
+            csv.format(",%s_max_ms", o);
+            if (corrected) {
+                for (double p : percentiles) {
+                    csv.format(",%s_corrected_p%s_ms", o, POCTestReporter.formatPercentile(p));
+                }
+                csv.format(",%s_corrected_max_ms", o);
+            }
+        }
+        for (String server : servers) {
+            for (String stat : POCServerSampler.STATS) {
+                csv.format(",%s_%s", server, stat);
+            }
+        }
+        csv.println();
+    }
+
+    /**
+     * @param bulkRetries    bulk writes resent this interval
+     * @param recoveryMillis time spent getting failed bulk writes through this interval
+     */
+    void startInterval(Date when, long elapsed, long inserted, long bulkRetries, long recoveryMillis)
+            throws IOException {
+        if (binary != null) {
+            binary.writeLong(when.getTime());
+            binary.writeLong(elapsed);
+            binary.writeLong(inserted);
+            binary.writeLong(bulkRetries);
+            binary.writeLong(recoveryMillis);
+        } else {
+            csv.format("%s,%d,%d,%d,%d", dateFormat.format(when), elapsed, inserted, bulkRetries, recoveryMillis);
+        }
+    }
+
+    /**
+     * Call once for every op type, in POCopType order
+     *
+     * @param correctedLatency ignored unless the log was opened for corrected figures
+     */
+    void logOp(long opsPerSecond, long totalOps, long errors, double fastPct,
+               Histogram latency, Histogram correctedLatency) throws IOException {
+        if (binary != null) {
+            binary.writeLong(opsPerSecond);
+            binary.writeLong(totalOps);
+            binary.writeLong(errors);
+            binary.writeFloat((float) fastPct);
+            writeLatency(latency);
+            if (corrected) {
+                writeLatency(correctedLatency);
+            }
+        } else {
+            csv.format(",%d,%d,%d,%.2f", opsPerSecond, totalOps, errors, fastPct);
+            for (double p : POCTestReporter.PERCENTILES) {
+                csv.format(",%.3f", latency.getValueAtPercentile(p) / 1000.0);
+            }
+            csv.format(",%.3f", latency.getMaxValue() / 1000.0);
+            if (corrected) {
+                for (double p : POCTestReporter.PERCENTILES) {
+                    csv.format(",%.3f", correctedLatency.getValueAtPercentile(p) / 1000.0);
+                }
+                csv.format(",%.3f", correctedLatency.getMaxValue() / 1000.0);
+            }
+        }
+    }
+
+    /**
+     * Call after the ops with POCServerSampler.GetInterval(), figures
+     * a server didn't have are left empty
+     */
+    void logServers(double[][] servers) throws IOException {
+        for (double[] stats : servers) {
+            for (double stat : stats) {
+                if (binary != null) {
+                    binary.writeFloat((float) stat);
+                } else {
+                    // As it would come back from the binary log
+                    csv.print(formatStat((float) stat));
+                }
+            }
+        }
+    }
+
+    private static String formatStat(double stat) {
+        return Double.isNaN(stat) ? "," : String.format(",%.2f", stat);
+    }
+
+    // Microseconds, 35 minutes is plenty for one op so an int will do
+    private void writeLatency(Histogram latency) throws IOException {
+        for (double p : POCTestReporter.PERCENTILES) {
+            binary.writeInt((int) Math.min(latency.getValueAtPercentile(p), Integer.MAX_VALUE));
+        }
+        binary.writeInt((int) Math.min(latency.getMaxValue(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Ends the record and pushes it to disk so a crash loses at most one interval
+     */
+    void endInterval() throws IOException {
+        if (binary != null) {
+            binary.flush();
+        } else {
+            csv.println();
+            csv.flush();
+        }
+    }
+
+    void close() {
+        if (binary != null) {
+            try {
+                binary.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        } else {
+            csv.close();
+        }
+    }
+
+    /**
+     * Write a --binarylog file out as the CSV it would have been
+     */
+    static void binaryToCsv(String filename, PrintWriter out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(filename + " is not a POCDriver binary log");
+            }
+            boolean corrected = in.readBoolean();
+            String[] opNames = new String[in.readInt()];
+            for (int i = 0; i < opNames.length; i++) {
+                opNames[i] = in.readUTF();
+            }
+            double[] percentiles = new double[in.readInt()];
+            for (int i = 0; i < percentiles.length; i++) {
+                percentiles[i] = in.readDouble();
+            }
+            String[] servers = new String[in.readInt()];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = in.readUTF();
+            }
+            writeCsvHeader(out, opNames, percentiles, corrected, servers);
+
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            while (true) {
+                long when;
+                try {
+                    when = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                out.format("%s,%d,%d,%d,%d", dateFormat.format(new Date(when)),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                for (int o = 0; o < opNames.length; o++) {
+                    out.format(",%d,%d,%d,%.2f", in.readLong(), in.readLong(), in.readLong(), in.readFloat());
+                    int latencies = (percentiles.length + 1) * (corrected ? 2 : 1);
+                    for (int i = 0; i < latencies; i++) {
+                        out.format(",%.3f", in.readInt() / 1000.0);
+                    }
+                }
+                for (int i = 0; i < servers.length * POCServerSampler.STATS.length; i++) {
+                    out.print(formatStat(in.readFloat()));
+                }
+                out.println();
+            }
+        } finally {
+            in.close();
+            out.flush();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.johnlpage.pocdriver;
 
 
+import com.mongodb.ReadPreference;
 import org.apache.commons.cli.CommandLine;
 
 import org.apache.commons.cli.CommandLineParser;
@@ -9,10 +10,15 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import java.util.Arrays;
+
 
 //Yes - lots of public values, getters are OTT here.
 
 public class POCTestOptions {
+	// Which records --deletes takes
+	enum DeleteMode { OLDEST, RANDOM, RANGE }
+
 	int batchSize = 512;
 	int numFields = 10;
 	int depth = 0;
@@ -24,19 +30,54 @@ public class POCTestOptions {
 	int slowThreshold = 50;
 	int insertops = 100;
 	int opsPerSecond = 0;
+	boolean openLoop = false;
+	int asyncOps = 0;
+	boolean virtualThreads = false;
+	boolean rawBson = false;
+	long loadDocs = 0;
+	boolean deferIndexes = false;
 	int keyqueries = 0;
 	int arrayupdates = 0;
 	int updates = 0;
 	int rangequeries=0;
+	int indexqueries = 0;
+	int indexrangequeries = 0;
+	boolean coveredQueries = false;
+	boolean indexSort = false;
+	int aggregations = 0;
+	int aggregationDocs = 1000;
+	int aggregationLimit = 10;
+	int aggregationBatchSize = 0;
+	ReadPreference aggregationReadPreference = ReadPreference.primary();
+	int changeStreams = 0;
+	int transactions = 0;
+	int deletes = 0;
+	DeleteMode deleteMode = DeleteMode.OLDEST;
+	int ttlSeconds = 0;
+	// Set up from --drivermetrics, for the MongoClients and the reporter
+	POCDriverMetrics driverMetrics = null;
+	boolean serverStats = false;
+	int metricsPort = 0;
+	int transactionSize = 2;
 	int duration = 18000;
 	int numShards = 1;
 	String logfile = null;
+	boolean binaryLog = false;
+	String logToCsv = null;
+	int coordinatorAgents = 0;
+	int coordinatorPort = POCCoordinator.DEFAULT_PORT;
+	String coordinatorBind = "127.0.0.1";
+	String coordinatorAddress = null;
+	// As given, so a coordinator can pass them on to its agents
+	String[] commandLine;
 	boolean sharded = false;
+	// Every worker's range has already been split off and placed
+	boolean preSplit = false;
 	boolean singleserver = false;
 	private String statsfile = "pocload.csv";
 	String databaseName = "POCDB";
 	String collectionName = "POCCOLL";
-	String workflow = null;
+	POCWorkflow workflow = null;
 	boolean emptyFirst = false;
 	boolean printOnly = false;
 	int secondaryidx=0;
@@ -55,6 +96,11 @@ public class POCTestOptions {
 	//Zipfian stuff
 	boolean zipfian = false;
 	int zipfsize = 0;
+	// How each op type picks its record, a KeyDistribution spec per POCopType
+	String[] keyDistributions = new String[POCopType.values().length];
+	boolean globalReads = false;
+	// Every worker's records, set up before the workers start if globalReads
+	POCKeySpace keySpace = null;
 
     int blobSize = 0;
 
@@ -62,6 +108,8 @@ public class POCTestOptions {
 	int workingset = 100;
 	boolean helpOnly = false;
 	String connectionDetails = "mongodb://localhost:27017";
+	// Whether -c was given, an agent's own replaces the coordinator's
+	boolean connectionGiven = false;
 	boolean fulltext;
 	
 	POCTestOptions(String[] args) throws ParseException
@@ -85,18 +133,38 @@ public class POCTestOptions {
 		cliopt.addOption("l","textfieldsize",true,"Length of text fields in bytes (default 30)");
 		cliopt.addOption("m","findandmodify",false,"Use findAndModify instead of update and retrieve record (with -u or -v only)");
 		cliopt.addOption("n","namespace",true,"Namespace to use , for example myDatabase.myCollection");
-		cliopt.addOption("o","logfile",true,"Output stats to  <file> ");
+		cliopt.addOption("o","logfile",true,"Output stats to  <file>, one CSV row per report interval");
 		cliopt.addOption("p","print",false,"Print out a sample record according to the other parameters then quit");
 		cliopt.addOption("q","opsPerSecond",true,"Try to rate limit the total ops/s to the specified amount");
 		cliopt.addOption("r","rangequeries",true,"Ratio of range query operations (default 0)");
 		cliopt.addOption("s","slowthreshold",true,"Slow operation threshold in ms(default 50)");
 		cliopt.addOption("t","threads",true,"Number of threads (default 4)");
 		cliopt.addOption("u","updates",true,"Ratio of update operations (default 0)");
-		cliopt.addOption("v","workflow",true,"Specify a set of ordered operations per thread from [iukp]");
+		cliopt.addOption("v","workflow",true,"Specify a set of ordered operations per thread from [iukprdgt], with repeats and [a|b] branches");
 		cliopt.addOption("w","nosharding",false,"Do not shard the collection");
 		cliopt.addOption("x","indexes",true,"Number of secondary indexes - does not remove existing (default 0)");
 		cliopt.addOption("y","collections",true,"Number of collections to span the workload over, implies w (default 1)");
 		cliopt.addOption("z","zipfian",true,"Enable zipfian distribution over X number of documents (default 0)");
+		cliopt.addOption(null,"indexqueries",true,"Ratio of equality queries on the -x indexed fields (default 0)");
+		cliopt.addOption(null,"indexrangequeries",true,"Ratio of range queries on the -x indexed fields, returning --rangedocs records (default 0)");
+		cliopt.addOption(null,"covered",false,"Index queries only return the queried field so the index covers them");
+		cliopt.addOption(null,"indexsort",false,"Sort index range queries by the queried field");
+		cliopt.addOption(null,"aggregations",true,"Ratio of aggregations that group --aggdocs records and sort the groups (default 0)");
+		cliopt.addOption(null,"aggdocs",true,"Number of records each aggregation takes (default 1000)");
+		cliopt.addOption(null,"agglimit",true,"Number of groups each aggregation returns (default 10)");
+		cliopt.addOption(null,"aggbatch",true,"Cursor batch size for aggregations (default the server's)");
+		cliopt.addOption(null,"aggreadpref",true,"Read preference for aggregations, e.g. secondary (default primary)");
+		cliopt.addOption(null,"transactions",true,"Ratio of transactions that read and update --txnsize records (default 0)");
+		cliopt.addOption(null,"txnsize",true,"Number of records each transaction reads and updates, spread over the -y collections (default 2)");
+		cliopt.addOption(null,"deletes",true,"Ratio of deletes (default 0)");
+		cliopt.addOption(null,"deletemode",true,"Which records --deletes removes: oldest of each worker's, random, or range for the oldest --rangedocs at once (default oldest)");
+		cliopt.addOption(null,"ttl",true,"Give records a created date with a TTL index that expires them after this many seconds");
+		cliopt.addOption(null,"drivermetrics",false,"Report server round trip time by command and connection pool use and checkout wait every interval");
+		cliopt.addOption(null,"serverstats",false,"Poll serverStatus on every mongod and mongos and report their op counts, cache, tickets and replication lag every interval");
+		cliopt.addOption(null,"metricsport",true,"Serve the test results in Prometheus format at http://host:port/metrics while running");
+		cliopt.addOption(null,"changestreams",true,"Number of threads following a change stream and reporting how far behind the writes they are (default 0)");
+		cliopt.addOption(null,"globalreads",false,"Queries and updates go to any worker's records, including those from earlier runs, not only their own");
+		cliopt.addOption(null,"keydist",true,"How records are picked, for all ops or per op as k=,u=,r=,g=,a=,t=,d= separated by commas, from uniform, zipfian[:theta], scrambled[:theta], latest[:theta], hotspot[:keys:ops], exponential[:pct:keys] (default uniform)");
 		cliopt.addOption(null,"threadIdStart",true,"Start 'workerId' for each thread. 'w' value in _id. (default 0)");
 		cliopt.addOption(null,"fulltext",false,"Create fulltext index (default false)");
 		cliopt.addOption(null,"binary",true,"add a binary blob of size KB");
@@ -104,8 +172,21 @@ public class POCTestOptions {
 		cliopt.addOption(null,"updatefields",true,"Number of fields to update (default 1)");
 		cliopt.addOption(null,"projectfields",true,"Number of fields to project in finds (default 0, which is no projection)");				
 		cliopt.addOption(null,"debug",false,"Show more detail if exceptions occur during inserts/queries");
+		cliopt.addOption(null,"openloop",false,"With -q, issue ops on a fixed schedule and measure latency from when each op should have started");
+		cliopt.addOption(null,"async",true,"Use the async driver keeping up to N operations in flight per thread (default 0, synchronous)");
+		cliopt.addOption(null,"virtualthreads",false,"Run each worker on its own virtual thread, needs Java 21 or later");
+		cliopt.addOption(null,"rawbson",false,"Generate inserted records directly as BSON rather than as Documents");
+		cliopt.addOption(null,"load",true,"Insert N records as fast as possible then stop, instead of running the op mix for -d seconds");
+		cliopt.addOption(null,"deferindexes",false,"With --load, build the -x and --fulltext indexes once the records are loaded");
+		cliopt.addOption(null,"binarylog",false,"Write the -o stats file in a compact binary format");
+		cliopt.addOption(null,"logtocsv",true,"Print a --binarylog stats file as CSV then quit");
+		cliopt.addOption(null,"coordinator",true,"Run no workers here, instead run these options on N agent processes and report their combined results");
+		cliopt.addOption(null,"coordinatorport",true,"Port the coordinator listens on for agents (default " + POCCoordinator.DEFAULT_PORT + ")");
+		cliopt.addOption(null,"coordinatorbind",true,"Address the coordinator listens on for agents, 0.0.0.0 for every interface (default 127.0.0.1)");
+		cliopt.addOption(null,"agent",true,"Run as an agent taking the options and worker IDs from the coordinator at host[:port]");
 
 		CommandLine cmd = parser.parse(cliopt, args);
+		commandLine = args;
 		
 
 		if(cmd.hasOption("binary"))
@@ -125,7 +206,7 @@ public class POCTestOptions {
 		
 		if(cmd.hasOption("v"))
 		{
-			workflow = cmd.getOptionValue("v");
+			workflow = POCWorkflow.compile(cmd.getOptionValue("v"));
 		}	
 		
 		if(cmd.hasOption("n"))
@@ -203,10 +284,134 @@ public class POCTestOptions {
 			numcollections = Integer.parseInt(cmd.getOptionValue("y"));
 			singleserver=true;
 		}
+		Arrays.fill(keyDistributions, KeyDistribution.DEFAULT);
 		if(cmd.hasOption("z"))
 		{
 			zipfian = true;
 			zipfsize = Integer.parseInt(cmd.getOptionValue("z"));
+			Arrays.fill(keyDistributions, "zipfian");
+		}
+
+		if(cmd.hasOption("indexqueries"))
+		{
+			indexqueries = Integer.parseInt(cmd.getOptionValue("indexqueries"));
+		}
+
+		if(cmd.hasOption("indexrangequeries"))
+		{
+			indexrangequeries = Integer.parseInt(cmd.getOptionValue("indexrangequeries"));
+		}
+
+		if(cmd.hasOption("covered"))
+		{
+			coveredQueries = true;
+		}
+
+		if(cmd.hasOption("indexsort"))
+		{
+			indexSort = true;
+		}
+
+		if(cmd.hasOption("aggregations"))
+		{
+			aggregations = Integer.parseInt(cmd.getOptionValue("aggregations"));
+		}
+
+		if(cmd.hasOption("aggdocs"))
+		{
+			aggregationDocs = Integer.parseInt(cmd.getOptionValue("aggdocs"));
+		}
+
+		if(cmd.hasOption("agglimit"))
+		{
+			aggregationLimit = Integer.parseInt(cmd.getOptionValue("agglimit"));
+		}
+
+		if(cmd.hasOption("aggbatch"))
+		{
+			aggregationBatchSize = Integer.parseInt(cmd.getOptionValue("aggbatch"));
+		}
+
+		if(cmd.hasOption("aggreadpref"))
+		{
+			try
+			{
+				aggregationReadPreference = ReadPreference.valueOf(cmd.getOptionValue("aggreadpref"));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParseException(e.getMessage());
+			}
+		}
+
+		if(cmd.hasOption("transactions"))
+		{
+			transactions = Integer.parseInt(cmd.getOptionValue("transactions"));
+		}
+
+		if(cmd.hasOption("txnsize"))
+		{
+			transactionSize = Integer.parseInt(cmd.getOptionValue("txnsize"));
+			if (transactionSize < 1)
+			{
+				throw new ParseException("--txnsize must be at least 1");
+			}
+		}
+
+		if(cmd.hasOption("deletes"))
+		{
+			deletes = Integer.parseInt(cmd.getOptionValue("deletes"));
+		}
+
+		if(cmd.hasOption("deletemode"))
+		{
+			try
+			{
+				deleteMode = DeleteMode.valueOf(cmd.getOptionValue("deletemode").toUpperCase());
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParseException("--deletemode must be oldest, random or range");
+			}
+		}
+
+		if(cmd.hasOption("ttl"))
+		{
+			ttlSeconds = Integer.parseInt(cmd.getOptionValue("ttl"));
+		}
+
+		if(cmd.hasOption("drivermetrics"))
+		{
+			driverMetrics = new POCDriverMetrics();
+		}
+
+		if(cmd.hasOption("serverstats"))
+		{
+			serverStats = true;
+		}
+
+		if(cmd.hasOption("metricsport"))
+		{
+			metricsPort = Integer.parseInt(cmd.getOptionValue("metricsport"));
+			if (metricsPort < 1 || metricsPort > 65535)
+			{
+				throw new ParseException("--metricsport must be a port number");
+			}
+		}
+
+		if(cmd.hasOption("changestreams"))
+		{
+			changeStreams = Integer.parseInt(cmd.getOptionValue("changestreams"));
+		}
+
+		if(cmd.hasOption("globalreads"))
+		{
+			globalReads = true;
+		}
+
+		if(cmd.hasOption("keydist"))
+		{
+			parseKeyDistributions(cmd.getOptionValue("keydist"));
 		}
 		
 		if(cmd.hasOption("o"))
@@ -240,6 +445,7 @@ public class POCTestOptions {
 		if(cmd.hasOption("c"))
 		{
 			connectionDetails = cmd.getOptionValue("c");
+			connectionGiven = true;
 		}	
 			
 		if(cmd.hasOption("l"))
@@ -300,5 +506,104 @@ public class POCTestOptions {
 		{
 			debug = true;
 		}
+
+		if(cmd.hasOption("openloop"))
+		{
+			openLoop = true;
+		}
+
+		if(cmd.hasOption("async"))
+		{
+			asyncOps = Integer.parseInt(cmd.getOptionValue("async"));
+		}
+
+		if(cmd.hasOption("virtualthreads"))
+		{
+			virtualThreads = true;
+		}
+
+		if(cmd.hasOption("coordinator"))
+		{
+			coordinatorAgents = Integer.parseInt(cmd.getOptionValue("coordinator"));
+		}
+
+		if(cmd.hasOption("coordinatorport"))
+		{
+			coordinatorPort = Integer.parseInt(cmd.getOptionValue("coordinatorport"));
+		}
+
+		if(cmd.hasOption("coordinatorbind"))
+		{
+			coordinatorBind = cmd.getOptionValue("coordinatorbind");
+		}
+
+		if(cmd.hasOption("agent"))
+		{
+			coordinatorAddress = cmd.getOptionValue("agent");
+		}
+
+		if(cmd.hasOption("rawbson"))
+		{
+			rawBson = true;
+		}
+
+		if(cmd.hasOption("load"))
+		{
+			loadDocs = Long.parseLong(cmd.getOptionValue("load"));
+		}
+
+		if(cmd.hasOption("deferindexes"))
+		{
+			deferIndexes = true;
+		}
+
+		if(cmd.hasOption("binarylog"))
+		{
+			binaryLog = true;
+		}
+
+		if(cmd.hasOption("logtocsv"))
+		{
+			logToCsv = cmd.getOptionValue("logtocsv");
+		}
+	}
+
+	/**
+	 * Either one spec for every op or a list like k=latest,u=hotspot:0.1:0.9
+	 * using the letters that set each op's ratio
+	 */
+	private void parseKeyDistributions(String value) throws ParseException
+	{
+		for (String entry : value.split(","))
+		{
+			String[] parts = entry.split("=", 2);
+			String spec = parts[parts.length - 1];
+			try
+			{
+				KeyDistribution.create(spec);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParseException(e.getMessage());
+			}
+			if (parts.length == 1)
+			{
+				Arrays.fill(keyDistributions, spec);
+				continue;
+			}
+			POCopType opType;
+			switch (parts[0])
+			{
+				case "k": opType = POCopType.KEYQUERIES; break;
+				case "u": opType = POCopType.UPDATES; break;
+				case "r": opType = POCopType.RANGEQUERIES; break;
+				case "g": opType = POCopType.ARRAYUPDATES; break;
+				case "a": opType = POCopType.AGGREGATIONS; break;
+				case "t": opType = POCopType.TRANSACTIONS; break;
+				case "d": opType = POCopType.DELETES; break;
+				default: throw new ParseException("No key distribution for op " + parts[0] + ", use k, u, r, g, a, t or d");
+			}
+			keyDistributions[opType.ordinal()] = spec;
+		}
 	}
 }
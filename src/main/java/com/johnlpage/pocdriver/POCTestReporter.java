@@ -4,98 +4,184 @@ package com.johnlpage.pocdriver;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import org.HdrHistogram.Histogram;
 import org.bson.Document;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.Map;
 
 
 public class POCTestReporter implements Runnable {
     private POCTestResults testResults;
     private MongoClient mongoClient;
     private POCTestOptions testOpts;
+    private POCServerSampler serverSampler;
+
+    private POCTestLog statsLog;
+    // Op types the test was set up to run, any others are only reported
+    // once some have been done
+    private boolean[] configured;
+    private long[] prevErrors = new long[POCopType.values().length];
+    private long prevBulkRetries = 0;
+    private long prevRetriedOps = 0;
+    private long prevRecoveryMillis = 0;
+    private long prevTransactionRetries = 0;
+    private long prevFailedCommands = 0;
 
-    private static final DateFormat DF_FULL = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     private static final DateFormat DF_TIME = new SimpleDateFormat("HH:mm:ss");
 
-    POCTestReporter(POCTestResults r, MongoClient mc, POCTestOptions t) {
+    static final double[] PERCENTILES = {50.0, 95.0, 99.0, 99.9};
+
+    /**
+     * @param s null without --serverstats
+     */
+    POCTestReporter(POCTestResults r, MongoClient mc, POCTestOptions t, POCServerSampler s) {
         mongoClient = mc;
         testResults = r;
         testOpts = t;
-
-    }
-
-
-    private void logData() {
-        PrintWriter outfile = null;
+        serverSampler = s;
+        configured = configuredOps(testOpts);
 
         if (testOpts.logfile != null) {
-
+            String[] servers = serverSampler != null ? serverSampler.GetServers() : new String[0];
             try {
-                outfile = new PrintWriter(new BufferedWriter(new FileWriter(testOpts.logfile, true)));
+                statsLog = new POCTestLog(testOpts.logfile, testOpts.binaryLog, testOpts.openLoop, servers);
             } catch (IOException e) {
-                System.out.println(e.getMessage());
+                System.out.println("Cannot open " + testOpts.logfile + ": " + e.getMessage());
             }
         }
+    }
 
-        Long insertsDone = testResults.GetOpsDone("inserts");
+
+    static boolean[] configuredOps(POCTestOptions testOpts) {
+        int[] weights = new int[POCopType.values().length];
+        weights[POCopType.INSERTS.ordinal()] = testOpts.loadDocs > 0 ? 1 : testOpts.insertops;
+        weights[POCopType.KEYQUERIES.ordinal()] = testOpts.keyqueries;
+        weights[POCopType.UPDATES.ordinal()] = testOpts.updates;
+        weights[POCopType.RANGEQUERIES.ordinal()] = testOpts.rangequeries;
+        weights[POCopType.ARRAYUPDATES.ordinal()] = testOpts.arrayupdates;
+        weights[POCopType.INDEXQUERIES.ordinal()] = testOpts.indexqueries;
+        weights[POCopType.INDEXRANGEQUERIES.ordinal()] = testOpts.indexrangequeries;
+        weights[POCopType.AGGREGATIONS.ordinal()] = testOpts.aggregations;
+        weights[POCopType.CHANGEEVENTS.ordinal()] = testOpts.changeStreams;
+        weights[POCopType.TRANSACTIONS.ordinal()] = testOpts.transactions;
+        weights[POCopType.TXNCOMMITS.ordinal()] = testOpts.transactions;
+        weights[POCopType.DELETES.ordinal()] = testOpts.deletes;
+        boolean[] configured = new boolean[weights.length];
+        for (POCopType o : POCopType.values()) {
+            configured[o.ordinal()] = weights[o.ordinal()] > 0
+                    || (testOpts.workflow != null && testOpts.workflow.runs(o));
+        }
+        return configured;
+    }
+
+    // Whether to print a line for the op type
+    private boolean shown(POCopType o) {
+        return configured[o.ordinal()] || testResults.GetOpsDone(o) > 0 || testResults.GetErrors(o) > 0;
+    }
+
+    private void logData() {
+        Long insertsDone = testResults.GetOpsDone(POCopType.INSERTS);
         if (testResults.GetSecondsElapsed() < testOpts.reportTime)
             return;
         System.out.println("------------------------");
         if (testOpts.sharded && !testOpts.singleserver) {
             MongoDatabase configdb = mongoClient.getDatabase("config");
             MongoCollection<Document> shards = configdb.getCollection("shards");
-            testOpts.numShards = (int) shards.count();
+            testOpts.numShards = (int) shards.countDocuments();
         }
         Date todaysdate = new Date();
+        Long secondsElapsed = testResults.GetSecondsElapsed();
         System.out.format("After %d seconds (%s), %,d new records inserted - collection has %,d in total \n",
-                testResults.GetSecondsElapsed(), DF_TIME.format(todaysdate), insertsDone, testResults.initialCount + insertsDone);
+                secondsElapsed, DF_TIME.format(todaysdate), insertsDone, testResults.initialCount + insertsDone);
 
-        if (outfile != null) {
-            outfile.format("%d,%d", testResults.GetSecondsElapsed(), insertsDone);
-        }
-
-        HashMap<String, Long> results = testResults
+        EnumMap<POCopType, Long> results = testResults
                 .GetOpsPerSecondLastInterval();
-        String[] opTypes = POCTestResults.opTypes;
 
-        for (String o : opTypes) {
-            System.out.format("%,d %s per second since last report ",
-                    results.get(o), o);
+        long bulkRetriesNow = testResults.GetBulkRetries();
+        long retriedOpsNow = testResults.GetRetriedOps();
+        long recoveryMillisNow = testResults.GetRecoveryMillis();
+        long bulkRetries = bulkRetriesNow - prevBulkRetries;
+        long recoveryMillis = recoveryMillisNow - prevRecoveryMillis;
+        if (bulkRetries > 0 || recoveryMillis > 0) {
+            System.out.format("%,d bulk writes retried (%,d ops), %,d ms spent recovering since last report\n",
+                    bulkRetries, retriedOpsNow - prevRetriedOps, recoveryMillis);
+        }
+        prevBulkRetries = bulkRetriesNow;
+        prevRetriedOps = retriedOpsNow;
+        prevRecoveryMillis = recoveryMillisNow;
+        long transactionRetriesNow = testResults.GetTransactionRetries();
+        if (transactionRetriesNow > prevTransactionRetries) {
+            System.out.format("%,d transactions aborted and retried since last report\n",
+                    transactionRetriesNow - prevTransactionRetries);
+        }
+        prevTransactionRetries = transactionRetriesNow;
 
-            if (outfile != null) {
-                String str = DF_FULL.format(todaysdate);
-                String mydate = str.replaceAll("\\s+", "T");
-                outfile.format("%s,%d,%d", mydate, testResults.GetSecondsElapsed(), insertsDone);
+        try {
+            if (statsLog != null) {
+                statsLog.startInterval(todaysdate, secondsElapsed, insertsDone, bulkRetries, recoveryMillis);
             }
 
-            Long opsDone = testResults.GetOpsDone(o);
-            if (opsDone > 0) {
-                Double fastops = 100 - (testResults.GetSlowOps(o) * 100.0)
-                        / opsDone;
-                System.out.format("%.2f %% in under %d milliseconds", fastops,
-                        testOpts.slowThreshold);
-                if (outfile != null) {
-                    outfile.format(",%.2f", fastops);
+            for (POCopType o : POCopType.values()) {
+                // Every op type still goes in the -o log so its columns line up
+                boolean shown = shown(o);
+                Long opsDone = testResults.GetOpsDone(o);
+                double fastops = 100;
+                if (opsDone > 0) {
+                    fastops = 100 - (testResults.GetSlowOps(o) * 100.0)
+                            / opsDone;
                 }
-            } else {
-                System.out.format("%.2f %% in under %d milliseconds", (float) 100, testOpts.slowThreshold);
-                if (outfile != null) {
-                    outfile.format(",%d", 100);
+                long errorsNow = testResults.GetErrors(o);
+                long errors = errorsNow - prevErrors[o.ordinal()];
+                prevErrors[o.ordinal()] = errorsNow;
+                Histogram latency = testResults.GetIntervalLatency(o);
+                Histogram corrected = null;
+                if (testOpts.openLoop) {
+                    corrected = testResults.GetIntervalCorrectedLatency(o);
+                }
+
+                if (shown) {
+                    System.out.format("%,d %s per second since last report ",
+                            results.get(o), o);
+                    System.out.format("%.2f %% in under %d milliseconds", fastops,
+                            testOpts.slowThreshold);
+                    if (errors > 0) {
+                        System.out.format(", %,d errors", errors);
+                    }
+                    System.out.println();
+                    printIntervalLatency("latency ms  ", latency);
+                    if (corrected != null) {
+                        printIntervalLatency("corrected ms", corrected);
+                    }
+                }
+
+                if (statsLog != null) {
+                    statsLog.logOp(results.get(o), opsDone, errors, fastops, latency, corrected);
                 }
             }
-            System.out.println();
 
-        }
-        if (outfile != null) {
-            outfile.println();
-            outfile.close();
+            if (serverSampler != null) {
+                double[][] serverStats = serverSampler.GetInterval();
+                printServerStats(serverSampler.GetServers(), serverStats);
+                if (statsLog != null) {
+                    statsLog.logServers(serverStats);
+                }
+            }
+            if (statsLog != null) {
+                statsLog.endInterval();
+            }
+            if (testOpts.driverMetrics != null) {
+                printDriverMetrics(testOpts.driverMetrics);
+            }
+        } catch (IOException e) {
+            // Carry on reporting to the screen without it
+            System.out.println("Cannot write to " + testOpts.logfile + ": " + e.getMessage());
+            statsLog.close();
+            statsLog = null;
         }
         System.out.println();
     }
@@ -111,7 +197,7 @@ public class POCTestReporter implements Runnable {
      */
     public void finalReport() {
 
-        Long insertsDone = testResults.GetOpsDone("inserts");
+        Long insertsDone = testResults.GetOpsDone(POCopType.INSERTS);
 
         Long secondsElapsed = testResults.GetSecondsElapsed();
 
@@ -119,17 +205,126 @@ public class POCTestReporter implements Runnable {
         System.out.format("After %d seconds, %d new records inserted - collection has %d in total \n",
                 secondsElapsed, insertsDone, testResults.initialCount + insertsDone);
 
-        String[] opTypes = POCTestResults.opTypes;
-
-        for (String o : opTypes) {
+        for (POCopType o : POCopType.values()) {
+            if (!shown(o)) {
+                continue;
+            }
 
             Long opsDone = testResults.GetOpsDone(o);
 
             System.out.format("%d %s per second on average", (int)(1f * opsDone / secondsElapsed), o);
+            Long errors = testResults.GetErrors(o);
+            if (errors > 0) {
+                System.out.format(", %d errors", errors);
+            }
             System.out.println();
 
         }
+        if (testResults.GetBulkRetries() > 0) {
+            System.out.format("%d bulk writes retried (%d ops), longest recovery %d ms, %d ms in total\n",
+                    testResults.GetBulkRetries(), testResults.GetRetriedOps(),
+                    testResults.GetLongestRecoveryMillis(), testResults.GetRecoveryMillis());
+        }
+        if (testResults.GetTransactionRetries() > 0) {
+            System.out.format("%d transactions aborted and retried\n", testResults.GetTransactionRetries());
+        }
+        System.out.println();
+
+        // Pick up whatever was recorded after the last interval report
+        System.out.format("%-14s %10s", "latency ms", "ops");
+        for (double p : PERCENTILES) {
+            System.out.format(" %9s", "p" + formatPercentile(p));
+        }
+        System.out.format(" %9s", "max");
+        System.out.println();
+        for (POCopType o : POCopType.values()) {
+            testResults.GetIntervalLatency(o);
+            if (shown(o)) {
+                printTotalLatency(o.toString(), testResults.GetTotalLatency(o));
+            }
+        }
+        if (testOpts.openLoop) {
+            // Measured from when each op should have started rather than when it did
+            for (POCopType o : POCopType.values()) {
+                testResults.GetIntervalCorrectedLatency(o);
+                if (shown(o)) {
+                    printTotalLatency(o + "*", testResults.GetTotalCorrectedLatency(o));
+                }
+            }
+            System.out.println("* corrected for coordinated omission");
+        }
+        System.out.println();
+
+        if (statsLog != null) {
+            statsLog.close();
+        }
+    }
+
+    // Where the time went between the workers and the server this interval
+    private void printDriverMetrics(POCDriverMetrics driverMetrics) {
+        System.out.format("%,d of %,d pooled connections in use, %,d open, %,d waiting for one",
+                driverMetrics.GetCheckedOut(), driverMetrics.GetMaxPoolSize(),
+                driverMetrics.GetConnections(), driverMetrics.GetWaiting());
+        long failedNow = driverMetrics.GetFailedCommands();
+        if (failedNow > prevFailedCommands) {
+            System.out.format(", %,d commands failed", failedNow - prevFailedCommands);
+        }
+        prevFailedCommands = failedNow;
+        System.out.println();
+        printIntervalLatency("checkout ms ", driverMetrics.GetIntervalCheckoutWait());
+        for (Map.Entry<String, Histogram> entry : driverMetrics.GetIntervalRoundTrips().entrySet()) {
+            Histogram roundTrips = entry.getValue();
+            printIntervalLatency(String.format("%s %,d round trip ms", entry.getKey(), roundTrips.getTotalCount()), roundTrips);
+        }
+    }
+
+    // What each server was doing over the same interval
+    private void printServerStats(String[] servers, double[][] serverStats) {
+        for (int i = 0; i < servers.length; i++) {
+            double[] stats = serverStats[i];
+            if (Double.isNaN(stats[0])) {
+                System.out.format("%s no server status this interval\n", servers[i]);
+                continue;
+            }
+            System.out.format("%s %,.0f inserts %,.0f queries %,.0f updates %,.0f deletes %,.0f getmores %,.0f commands per second",
+                    servers[i], stats[0], stats[1], stats[2], stats[3], stats[4], stats[5]);
+            if (!Double.isNaN(stats[POCServerSampler.CACHE_USED])) {
+                System.out.format(", cache %.1f%% used %.1f%% dirty",
+                        stats[POCServerSampler.CACHE_USED], stats[POCServerSampler.CACHE_DIRTY]);
+            }
+            if (!Double.isNaN(stats[POCServerSampler.READ_TICKETS])) {
+                System.out.format(", as few as %.0f read %.0f write tickets left",
+                        stats[POCServerSampler.READ_TICKETS], stats[POCServerSampler.WRITE_TICKETS]);
+            }
+            if (!Double.isNaN(stats[POCServerSampler.REPL_LAG])) {
+                System.out.format(", up to %.1f s behind the primary", stats[POCServerSampler.REPL_LAG]);
+            }
+            System.out.println();
+        }
+    }
+
+    private void printIntervalLatency(String label, Histogram latency) {
+        if (latency.getTotalCount() == 0) {
+            return;
+        }
+        System.out.print("    " + label + " ");
+        for (double p : PERCENTILES) {
+            System.out.format(" p%s %.2f", formatPercentile(p), latency.getValueAtPercentile(p) / 1000.0);
+        }
+        System.out.format(" max %.2f", latency.getMaxValue() / 1000.0);
         System.out.println();
+    }
+
+    private void printTotalLatency(String label, Histogram latency) {
+        System.out.format("%-14s %10d", label, latency.getTotalCount());
+        for (double p : PERCENTILES) {
+            System.out.format(" %9.2f", latency.getValueAtPercentile(p) / 1000.0);
+        }
+        System.out.format(" %9.2f", latency.getMaxValue() / 1000.0);
+        System.out.println();
+    }
 
+    static String formatPercentile(double p) {
+        return p == Math.floor(p) ? String.valueOf((int) p) : String.valueOf(p);
     }
 }
@@ -1,9 +1,13 @@
 package com.johnlpage.pocdriver;
 
 
+import org.HdrHistogram.Histogram;
+
 import java.util.Date;
-import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class POCTestResults {
@@ -15,31 +19,56 @@ public class POCTestResults {
     private Date lastIntervalTime;
     long initialCount;
 
-    public static String[] opTypes = {"inserts", "keyqueries", "updates", "rangequeries"};
-    private ConcurrentHashMap<String, POCopStats> opStats;
+    // Indexed by POCopType ordinal
+    private POCopStats[] opStats;
+
+    /**
+     * Latencies are held in microseconds, anything over an hour is clamped
+     */
+    static final long MAX_LATENCY_US = TimeUnit.HOURS.toMicros(1);
+    static final int LATENCY_DIGITS = 2;
+
+    // Latency recorders are striped by thread, a power of two so we can mask
+    private int stripeMask;
+
+    // Bulk writes sent again after a failure, how many ops were resent and
+    // how long it was from the first failure until they all went through
+    private LongAdder bulkRetries = new LongAdder();
+    private LongAdder retriedOps = new LongAdder();
+    private LongAdder recoveryMicros = new LongAdder();
+    private LongAccumulator longestRecoveryMicros = new LongAccumulator(Math::max, 0);
+
+    // Transactions rolled back by a transient error and run again
+    private LongAdder transactionRetries = new LongAdder();
 
 
     POCTestResults() {
         startTime = new Date();
         lastIntervalTime = new Date();
-        opStats = new ConcurrentHashMap<String, POCopStats>();
+        opStats = new POCopStats[POCopType.values().length];
 
-        for (String s : opTypes) {
-            opStats.put(s, new POCopStats());
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        stripeMask = stripes - 1;
+
+        for (POCopType t : POCopType.values()) {
+            opStats[t.ordinal()] = new POCopStats(stripes);
         }
     }
 
     //This returns inserts per second since we last called it
     //Rather than us keeping an overall figure
 
-    HashMap<String, Long> GetOpsPerSecondLastInterval() {
+    EnumMap<POCopType, Long> GetOpsPerSecondLastInterval() {
 
-        HashMap<String, Long> rval = new HashMap<String, Long>();
+        EnumMap<POCopType, Long> rval = new EnumMap<POCopType, Long>(POCopType.class);
 
         Date now = new Date();
         Long milliSecondsSinceLastCheck = now.getTime() - lastIntervalTime.getTime();
 
-        for (String s : opTypes) {
+        for (POCopType s : POCopType.values()) {
             Long opsNow = GetOpsDone(s);
             Long opsPrev = GetPrevOpsDone(s);
             Long opsPerInterval = ((opsNow - opsPrev) * 1000) / milliSecondsSinceLastCheck;
@@ -52,45 +81,193 @@ public class POCTestResults {
         return rval;
     }
 
+    /**
+     * Start timing again from now, for when setup shouldn't count as part of
+     * the test - call before any workers or reporter are started
+     */
+    void ResetClock() {
+        startTime = new Date();
+        lastIntervalTime = startTime;
+    }
+
     public Long GetSecondsElapsed() {
         Date now = new Date();
         return (now.getTime() - startTime.getTime()) / 1000;
     }
 
 
-    private Long GetPrevOpsDone(String opType) {
-        POCopStats os = opStats.get(opType);
-        return os.intervalCount.get();
+    private Long GetPrevOpsDone(POCopType opType) {
+        return opStats[opType.ordinal()].intervalCount.get();
+    }
+
+    private void SetPrevOpsDone(POCopType opType, Long numOps) {
+        opStats[opType.ordinal()].intervalCount.set(numOps);
+    }
+
+    public Long GetOpsDone(POCopType opType) {
+        return opStats[opType.ordinal()].totalOpsDone.sum();
     }
 
-    private void SetPrevOpsDone(String opType, Long numOps) {
-        POCopStats os = opStats.get(opType);
-        os.intervalCount.set(numOps);
+
+    public Long GetSlowOps(POCopType opType) {
+        return opStats[opType.ordinal()].slowOps.sum();
     }
 
-    public Long GetOpsDone(String opType) {
-        POCopStats os = opStats.get(opType);
-        return os.totalOpsDone.get();
+    public void RecordSlowOp(POCopType opType, int number) {
+        opStats[opType.ordinal()].slowOps.add(number);
     }
 
+    public Long GetErrors(POCopType opType) {
+        return opStats[opType.ordinal()].errors.sum();
+    }
 
-    public Long GetSlowOps(String opType) {
-        POCopStats os = opStats.get(opType);
-        return os.slowOps.get();
+    public void RecordError(POCopType opType) {
+        opStats[opType.ordinal()].errors.increment();
     }
 
-    public void RecordSlowOp(String opType, int number) {
-        POCopStats os = opStats.get(opType);
-        os.slowOps.addAndGet(number);
+    public void RecordOpsDone(POCopType opType, int howmany) {
+        opStats[opType.ordinal()].totalOpsDone.add(howmany);
     }
 
-    public void RecordOpsDone(String opType, int howmany) {
-        POCopStats os = opStats.get(opType);
-        if (os == null) {
-            System.out.println("Cannot fetch opstats for " + opType);
-        } else {
-            os.totalOpsDone.addAndGet(howmany);
+    /**
+     * @param howmany ops being sent again
+     */
+    public void RecordBulkRetry(int howmany) {
+        bulkRetries.increment();
+        retriedOps.add(howmany);
+    }
+
+    /**
+     * A bulk write that failed has now all been written
+     *
+     * @param nanos from the first failure until then
+     */
+    public void RecordRecovery(long nanos) {
+        long micros = nanos / 1000;
+        recoveryMicros.add(micros);
+        longestRecoveryMicros.accumulate(micros);
+    }
+
+    /**
+     * Add in an agent's bulk write retries over an interval
+     */
+    void MergeRetries(long retries, long ops, long recoveryMillis, long longestRecoveryMillis) {
+        bulkRetries.add(retries);
+        retriedOps.add(ops);
+        recoveryMicros.add(recoveryMillis * 1000);
+        longestRecoveryMicros.accumulate(longestRecoveryMillis * 1000);
+    }
+
+    public void RecordTransactionRetry() {
+        transactionRetries.increment();
+    }
+
+    void MergeTransactionRetries(long retries) {
+        transactionRetries.add(retries);
+    }
+
+    public Long GetTransactionRetries() {
+        return transactionRetries.sum();
+    }
+
+    public Long GetBulkRetries() {
+        return bulkRetries.sum();
+    }
+
+    public Long GetRetriedOps() {
+        return retriedOps.sum();
+    }
+
+    public Long GetRecoveryMillis() {
+        return recoveryMicros.sum() / 1000;
+    }
+
+    public Long GetLongestRecoveryMillis() {
+        return longestRecoveryMicros.get() / 1000;
+    }
+
+    /**
+     * Record how long an operation took, if it was a batch then every op in
+     * it is counted as having taken that long
+     *
+     * @param nanos   elapsed time from System.nanoTime()
+     * @param howmany number of ops that completed in that time
+     */
+    public void RecordLatency(POCopType opType, long nanos, int howmany) {
+        recordLatency(opStats[opType.ordinal()].latency, nanos, howmany);
+    }
+
+    /**
+     * As RecordLatency but measured from when an open loop schedule intended
+     * the op to start, so time spent queued behind a stalled op is included
+     */
+    public void RecordCorrectedLatency(POCopType opType, long nanos, int howmany) {
+        recordLatency(opStats[opType.ordinal()].correctedLatency, nanos, howmany);
+    }
+
+    /**
+     * Add in what an agent did over an interval
+     *
+     * @param correctedLatency null unless running an open loop
+     */
+    void MergeInterval(POCopType opType, long opsDone, long slowOps, long errors,
+                       Histogram latency, Histogram correctedLatency) {
+        POCopStats stats = opStats[opType.ordinal()];
+        stats.totalOpsDone.add(opsDone);
+        stats.slowOps.add(slowOps);
+        stats.errors.add(errors);
+        stats.latency.add(latency);
+        if (correctedLatency != null) {
+            stats.correctedLatency.add(correctedLatency);
+        }
+    }
+
+    private void recordLatency(POCLatencyRecorder recorder, long nanos, int howmany) {
+        if (howmany < 1) {
+            return;
         }
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_LATENCY_US);
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        recorder.record(stripe, micros, howmany);
+    }
+
+    /**
+     * Collects the latencies recorded since this was last called for this
+     * op type and folds them into the run total - reporter thread only
+     */
+    Histogram GetIntervalLatency(POCopType opType) {
+        POCLatencyRecorder recorder = opStats[opType.ordinal()].latency;
+        recorder.drain();
+        return recorder.intervalLatency;
+    }
+
+    Histogram GetIntervalCorrectedLatency(POCopType opType) {
+        POCLatencyRecorder recorder = opStats[opType.ordinal()].correctedLatency;
+        recorder.drain();
+        return recorder.intervalLatency;
+    }
+
+    /**
+     * Everything collected so far by GetIntervalLatency
+     */
+    Histogram GetTotalLatency(POCopType opType) {
+        return opStats[opType.ordinal()].latency.totalLatency;
+    }
+
+    Histogram GetTotalCorrectedLatency(POCopType opType) {
+        return opStats[opType.ordinal()].correctedLatency.totalLatency;
+    }
+
+    /**
+     * For threads other than the reporter, which must only read the
+     * published figures from the last interval the reporter collected
+     */
+    POCLatencyRecorder GetPublishedLatency(POCopType opType) {
+        return opStats[opType.ordinal()].latency;
+    }
+
+    POCLatencyRecorder GetPublishedCorrectedLatency(POCopType opType) {
+        return opStats[opType.ordinal()].correctedLatency;
     }
 
 
@@ -0,0 +1,875 @@
+package com.johnlpage.pocdriver;
+
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+
+
+/**
+ * What a worker does whichever driver it runs on: pacing, picking the next
+ * op from the mix or the -v workflow, picking keys and building the writes
+ * that go in a batch. MongoWorker and MongoAsyncWorker only send the ops
+ * and record what came back, C is the type of their collections.
+ */
+abstract class POCWorker<C> implements Runnable {
+
+    // Runs of a transaction, or of its commit, before it counts as an error
+    static final int MAX_TXN_ATTEMPTS = 10;
+
+    // The op mix is laid out in this order, -i first and --deletes last
+    private static final POCopType[] MIX = {POCopType.INSERTS, POCopType.KEYQUERIES, POCopType.RANGEQUERIES,
+            POCopType.UPDATES, POCopType.ARRAYUPDATES, POCopType.INDEXQUERIES, POCopType.INDEXRANGEQUERIES,
+            POCopType.AGGREGATIONS, POCopType.TRANSACTIONS, POCopType.DELETES};
+
+    final MongoClient mongoClient;
+    final POCTestOptions testOpts;
+    final POCTestResults testResults;
+    final int workerID;
+    final Random rng = new Random();
+    int sequence;
+    C coll;
+    private final List<C> colls;
+    private int lastCollection = 0;
+    private int numShards = 0;
+    private final long slowThresholdNanos;
+
+    // Running totals of the op mix weights, in MIX order
+    private final int[] mix = new int[MIX.length];
+    // How each op type picks its record, by POCopType ordinal
+    private final KeyDistribution[] keyDists;
+    private final KeyDistribution arrayTopDist;
+    private final KeyDistribution arrayNextDist;
+    private POCIndexQueries indexQueries;
+    private POCAggregation aggregation;
+    // The fields to return with --projectfields, null for all of them
+    final Bson projection;
+
+    final POCWorkflow workflow;
+    private int workflowStep = 0;
+    private final ArrayList<Document> keyStack = new ArrayList<Document>();
+
+    // Our records from deleteFrom up to written are in the collection,
+    // --deletes oldest and range move deleteFrom up. Batches may finish on
+    // the driver's threads.
+    private int deleteFrom;
+    private final AtomicInteger written = new AtomicInteger();
+    // Batches sent and not yet finished, oldest first. Async batches can
+    // finish in any order and written only passes a batch's records once
+    // every batch before it has finished too.
+    private final ArrayDeque<POCBulkWrite> unwritten = new ArrayDeque<POCBulkWrite>();
+
+    // Open loop scheduling - when the current op and the first op in the
+    // current batch were meant to start regardless of how the server is doing
+    long intendedStart;
+    private long batchIntendedStart;
+
+    private List<WriteModel<BsonDocument>> bulkWriter = new ArrayList<WriteModel<BsonDocument>>();
+    // A bulk result only says how many updates matched in all, so array
+    // updates go in a batch of their own. A workflow's batch has to stay in
+    // order so is sent early instead when the other type of update comes.
+    private List<WriteModel<BsonDocument>> arrayWriter = new ArrayList<WriteModel<BsonDocument>>();
+    private POCopType batchUpdateType = POCopType.UPDATES;
+    // Whether a batch may still be being written when the next one is built,
+    // if not its records and buffer can be reused
+    private final boolean batchesInFlight;
+
+    // The inserts in a batch are only held until it is sent, after which the
+    // driver has finished with them, so the next batch reuses their records.
+    // The pool grows to the most inserts one batch has had, with a mix of ops
+    // that is less than -b, rather than -b for every worker up front.
+    private List<TestRecord> recordPool;
+    private int nextRecord = 0;
+    private final Codec<Document> documentCodec;
+
+    // With --rawbson a whole batch of inserts is written into one buffer
+    private TestRecord rawGenerator;
+    private BasicOutputBuffer rawBuffer;
+
+    /**
+     * Setup is done with the synchronous client whichever driver runs the ops
+     *
+     * @param collections the -y collections, or just the one
+     */
+    POCWorker(MongoClient c, POCTestOptions t, POCTestResults r, int id, List<C> collections, boolean batchesInFlight) {
+        mongoClient = c;
+        testOpts = t;
+        testResults = r;
+        workerID = id;
+        colls = collections;
+        coll = colls.get(0);
+        this.batchesInFlight = batchesInFlight;
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(testOpts.slowThreshold);
+
+        //Ping
+        c.getDatabase("admin").runCommand(new Document("ping", 1));
+        MongoDatabase db = c.getDatabase(testOpts.databaseName);
+        MongoCollection<Document> first = db.getCollection(testOpts.numcollections > 1
+                ? testOpts.collectionName + 0 : testOpts.collectionName);
+
+        // id
+        sequence = getHighestID(first, workerID);
+        if (testOpts.keySpace != null) {
+            testOpts.keySpace.publish(workerID, sequence);
+        }
+        written.set(sequence);
+        // An earlier run may have deleted the oldest
+        deleteFrom = getLowestID(first, workerID);
+        if (testOpts.keySpace != null) {
+            testOpts.keySpace.deleted(workerID, deleteFrom);
+        }
+
+        if (testOpts.preSplit) {
+            numShards = testOpts.numShards;
+        } else {
+            ReviewShards();
+        }
+
+        documentCodec = db.getCodecRegistry().get(Document.class);
+        if (!batchesInFlight) {
+            recordPool = new ArrayList<TestRecord>();
+        }
+        if (testOpts.rawBson) {
+            rawGenerator = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen,
+                    workerID, 0, testOpts.NUMBER_SIZE,
+                    new int[]{testOpts.arraytop, testOpts.arraynext}, testOpts.blobSize, rng);
+            stamp(rawGenerator, testOpts);
+            rawBuffer = new BasicOutputBuffer();
+        }
+        keyDists = createKeyDistributions(testOpts);
+        arrayTopDist = KeyDistribution.create(testOpts.keyDistributions[POCopType.ARRAYUPDATES.ordinal()]);
+        arrayNextDist = KeyDistribution.create(testOpts.keyDistributions[POCopType.ARRAYUPDATES.ordinal()]);
+        if (testOpts.indexqueries + testOpts.indexrangequeries > 0) {
+            indexQueries = new POCIndexQueries(testOpts, rng);
+        }
+        if (testOpts.aggregations > 0) {
+            aggregation = new POCAggregation(testOpts);
+        }
+
+        if (testOpts.projectFields > 0) {
+            int numProjFields = (testOpts.projectFields <= testOpts.numFields) ? testOpts.projectFields : testOpts.numFields;
+            List<String> projFields = new ArrayList<String>(numProjFields);
+            for (int i = 0; i < numProjFields; i++) {
+                projFields.add("fld" + i);
+            }
+            projection = fields(include(projFields));
+        } else {
+            projection = null;
+        }
+
+        workflow = testOpts.workflow;
+        int[] weights = {testOpts.insertops, testOpts.keyqueries, testOpts.rangequeries,
+                testOpts.updates, testOpts.arrayupdates, testOpts.indexqueries, testOpts.indexrangequeries,
+                testOpts.aggregations, testOpts.transactions, testOpts.deletes};
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            mix[i] = total;
+        }
+    }
+
+    // Send each kind of op. They return once it is sent, or with the
+    // synchronous driver once it is done.
+
+    /**
+     * @param needResult the caller wants the record found, not just the op sent
+     * @return the record, or null if not found or not needed
+     */
+    abstract Document keyQuery(Document query, boolean needResult) throws InterruptedException;
+
+    /**
+     * Read up to limit records
+     *
+     * @param projection null for whole records
+     * @param sort       null for any order
+     */
+    abstract void find(POCopType opType, Bson filter, Bson projection, Bson sort, int limit) throws InterruptedException;
+
+    abstract void aggregate(List<Bson> pipeline) throws InterruptedException;
+
+    abstract void findAndModify(POCopType opType, Document query, Document change) throws InterruptedException;
+
+    /**
+     * Read then update each key in targets, all in one transaction
+     */
+    abstract void transaction(List<C> targets, List<Document> keys, List<Document> changes) throws InterruptedException;
+
+    /**
+     * Write the batch, retrying as it says, and call flushed() when it's done
+     */
+    abstract void flush(POCBulkWrite bulkWrite) throws InterruptedException;
+
+    // Wait for whatever is still outstanding once the last op is sent
+    void drain() throws InterruptedException {
+    }
+
+    private void ReviewShards() {
+        ReviewShards(mongoClient, testOpts, workerID, sequence);
+        if (testOpts.sharded && !testOpts.singleserver) {
+            numShards = testOpts.numShards;
+        }
+    }
+
+    static void ReviewShards(MongoClient mongoClient, POCTestOptions testOpts, int workerID, int sequence) {
+        //System.out.println("Reviewing chunk distribution");
+        if (testOpts.sharded && !testOpts.singleserver) {
+            // I'd like to pick a shard and write there - it's going to be
+            // faster and
+            // We can ensure we distribute our workers over out shards
+            // So we will tell mongo that's where we want our records to go
+            //System.out.println("Sharded and not a single server");
+            MongoDatabase admindb = mongoClient.getDatabase("admin");
+            Boolean split = false;
+
+            while (!split) {
+
+                try {
+                    //		System.out.println("Splitting a chunk");
+                    admindb.runCommand(new Document("split",
+                            testOpts.databaseName + "." + testOpts.collectionName)
+                            .append("middle",
+                                    new Document("_id", new Document("w",
+                                            workerID).append("i", sequence + 1))));
+                    split = true;
+                } catch (Exception e) {
+
+                    if (e.getMessage().contains("is a boundary key of existing")) {
+                        split = true;
+                    } else {
+                        if (!e.getMessage().contains("could not aquire collection lock"))
+                            System.out.println(e.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (Exception ignored) {
+                        }
+                    }
+                }
+
+            }
+            // And move that to a shard - which shard? take my workerid and mod
+            // it with the number of shards
+            int shardno = workerID % testOpts.numShards;
+            // Get the name of the shard
+
+            MongoCursor<Document> shardlist = mongoClient.getDatabase("config")
+                    .getCollection("shards").find().sort(new Document("_id", 1)).skip(shardno).limit(1).iterator();
+            //System.out.println("Getting shard name");
+            String shardName = "";
+            while (shardlist.hasNext()) {
+                Document obj = shardlist.next();
+
+                shardName = obj.getString("_id");
+                //System.out.println(shardName);
+            }
+
+            boolean move = false;
+            while (!move) {
+                try {
+                    admindb.runCommand(new Document("moveChunk",
+                            testOpts.databaseName + "." + testOpts.collectionName)
+                            .append("find",
+                                    new Document("_id", new Document("w",
+                                            workerID).append("i", sequence + 1)))
+                            .append("to", shardName));
+                    move = true;
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                    if (e.getMessage().contains("that chunk is already on that shard")) {
+                        move = true;
+                    } else {
+                        if (!e.getMessage().contains("could not aquire collection lock"))
+                            System.out.println(e.getMessage());
+                        try {
+                            Thread.sleep(1000);
+                        } catch (Exception ignored) {
+                        }
+                    }
+                }
+
+
+            }
+
+            //System.out.println("Moved {w:" + workerID + ",i:" + (sequence + 1)
+            //		+ "} to " + shardName);
+        }
+    }
+
+    static KeyDistribution[] createKeyDistributions(POCTestOptions testOpts) {
+        KeyDistribution[] keyDists = new KeyDistribution[POCopType.values().length];
+        for (POCopType o : POCopType.values()) {
+            keyDists[o.ordinal()] = KeyDistribution.create(testOpts.keyDistributions[o.ordinal()]);
+        }
+        return keyDists;
+    }
+
+    static int getHighestID(MongoCollection<Document> coll, int workerID) {
+        int rval = 0;
+
+        Document query = new Document();
+
+        //TODO Refactor the query for 3.0 driver
+        Document limits = new Document("$gt", new Document("w",
+                workerID));
+        limits.append("$lt", new Document("w", workerID + 1));
+
+        query.append("_id", limits);
+
+        Document myDoc = coll.find(query).projection(include("_id"))
+                .sort(descending("_id"))
+                .first();
+        if (myDoc != null) {
+            Document id = (Document) myDoc.get("_id");
+            rval = id.getInteger("i") + 1;
+        }
+        return rval;
+    }
+
+    /**
+     * @return the lowest sequence of workerID's records in coll, or 0
+     */
+    static int getLowestID(MongoCollection<Document> coll, int workerID) {
+        Document limits = new Document("$gt", new Document("w", workerID))
+                .append("$lt", new Document("w", workerID + 1));
+        Document myDoc = coll.find(new Document("_id", limits)).projection(include("_id"))
+                .sort(ascending("_id"))
+                .first();
+        if (myDoc != null) {
+            return ((Document) myDoc.get("_id")).getInteger("i");
+        }
+        return 0;
+    }
+
+    /**
+     * The _id of an existing record, one of ours unless --globalreads
+     */
+    private Document pickKey(POCopType opType) {
+        if (testOpts.keySpace != null) {
+            return testOpts.keySpace.pickKey(keyDists[opType.ordinal()], rng, testOpts);
+        }
+        return new Document("w", workerID).append("i",
+                pickRecord(keyDists[opType.ordinal()], rng, deleteFrom, written.get(), testOpts));
+    }
+
+    /**
+     * A record from the -j working set at the newest end of the live
+     * records from to sequence - 1, no more than -z of them if that was given
+     */
+    static int pickRecord(KeyDistribution keyDist, Random rng, int from, int sequence, POCTestOptions testOpts) {
+        int range = (int) ((long) (sequence - from) * testOpts.workingset / 100);
+        int rest = sequence - range;
+        if (testOpts.zipfsize > 0) {
+            range = Math.min(range, testOpts.zipfsize);
+        }
+        return rest + keyDist.next(rng, range);
+    }
+
+    /**
+     * Where a range query starts, anywhere in our live records or with a key
+     * space anywhere in any worker's, the working set doesn't apply
+     */
+    static Document rangeStart(POCKeySpace keySpace, KeyDistribution keyDist, Random rng, int workerID,
+                               int from, int sequence) {
+        if (keySpace != null) {
+            workerID = keySpace.pickWorker(rng);
+            from = keySpace.lowWater(workerID);
+            sequence = keySpace.highWater(workerID);
+        }
+        return new Document("w", workerID).append("i", from + keyDist.next(rng, sequence - from));
+    }
+
+    static Document deleteRange(int workerID, int from, int to) {
+        return new Document("_id", new Document("$gte", new Document("w", workerID).append("i", from))
+                .append("$lt", new Document("w", workerID).append("i", to)));
+    }
+
+    /**
+     * Mark tr and the records made from it with the times --ttl and
+     * --changestreams need
+     */
+    static void stamp(TestRecord tr, POCTestOptions testOpts) {
+        if (testOpts.ttlSeconds > 0) {
+            tr.stampCreated();
+        }
+        if (testOpts.changeStreams > 0) {
+            tr.stampWriteTime();
+        }
+    }
+
+    // The transaction was rolled back and can be run again from the start
+    static boolean transientTxnError(Throwable t) {
+        return t instanceof MongoException
+                && ((MongoException) t).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+    // The commit may or may not have happened, committing again is safe
+    static boolean unknownCommitResult(Throwable t) {
+        return t instanceof MongoException
+                && ((MongoException) t).hasErrorLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+    }
+
+    void rotateCollection() {
+        if (colls.size() > 1) {
+            coll = colls.get(lastCollection);
+            lastCollection = (lastCollection + 1) % colls.size();
+        }
+    }
+
+    /**
+     * @param opIntendedStart when an open loop meant the op to start
+     * @param howmany         ops that took that long
+     */
+    void recordLatency(POCopType opType, long starttime, long opIntendedStart, int howmany) {
+        long endtime = System.nanoTime();
+        long taken = endtime - starttime;
+        if (taken > slowThresholdNanos) {
+            testResults.RecordSlowOp(opType, howmany);
+        }
+        testResults.RecordLatency(opType, taken, howmany);
+        if (testOpts.openLoop) {
+            testResults.RecordCorrectedLatency(opType, endtime - opIntendedStart, howmany);
+        }
+    }
+
+    void recordOp(POCopType opType, long starttime, long opIntendedStart) {
+        recordLatency(opType, starttime, opIntendedStart, 1);
+        testResults.RecordOpsDone(opType, 1);
+    }
+
+    void recordError(POCopType opType, Throwable t) {
+        System.out.println(t.getClass().getSimpleName() + ": " + t.getMessage());
+        if (testOpts.debug)
+            t.printStackTrace();
+        testResults.RecordError(opType);
+    }
+
+    /**
+     * A batch has all been written, may be called on a driver thread
+     */
+    void flushed(POCBulkWrite bulkWrite) {
+        if (bulkWrite.failedAt != 0) {
+            testResults.RecordRecovery(System.nanoTime() - bulkWrite.failedAt);
+        }
+        // If the bulk op is slow - ALL those ops were slow. Nothing in a batch
+        // is sent until it fills so with an open loop every op in it has been
+        // waiting since the first one should have started.
+        recordLatency(POCopType.INSERTS, bulkWrite.starttime, bulkWrite.intendedStart, bulkWrite.inserted);
+        recordLatency(bulkWrite.updateType, bulkWrite.starttime, bulkWrite.intendedStart, bulkWrite.matched);
+        recordLatency(POCopType.DELETES, bulkWrite.starttime, bulkWrite.intendedStart, bulkWrite.deleted);
+        testResults.RecordOpsDone(POCopType.INSERTS, bulkWrite.inserted);
+        // Only what was there to update or delete counts
+        testResults.RecordOpsDone(bulkWrite.updateType, bulkWrite.matched);
+        testResults.RecordOpsDone(POCopType.DELETES, bulkWrite.deleted);
+        int upTo = -1;
+        synchronized (unwritten) {
+            bulkWrite.finished = true;
+            while (!unwritten.isEmpty() && unwritten.peek().finished) {
+                upTo = unwritten.poll().lastSequence;
+            }
+        }
+        if (upTo >= 0) {
+            written.accumulateAndGet(upTo, Math::max);
+            if (testOpts.keySpace != null) {
+                // Everything we have inserted up to then has been written now
+                testOpts.keySpace.publish(workerID, upTo);
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            int c = 0;
+            long opIntervalNanos = 0;
+            long nextIntendedStart = 0;
+            double sleeptimems = 0;
+            if (testOpts.opsPerSecond > 0) {
+                double opsperthreadsecond = testOpts.opsPerSecond / (double) testOpts.numThreads;
+                opIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / opsperthreadsecond);
+                //Timer isn't granullar enough to sleep for each
+                sleeptimems = 1000 / opsperthreadsecond;
+                // Stagger the workers so they don't all fire together
+                nextIntendedStart = System.nanoTime() + (long) (rng.nextDouble() * opIntervalNanos);
+            }
+            System.out.println("Worker thread " + workerID + " Started.");
+            while (testResults.GetSecondsElapsed() < testOpts.duration) {
+                c++;
+                if (testOpts.openLoop) {
+                    // The schedule doesn't wait for a slow server - if we have
+                    // fallen behind we go straight away and the op is charged
+                    // for the time it spent waiting to be sent
+                    intendedStart = nextIntendedStart;
+                    nextIntendedStart += opIntervalNanos;
+                    long wait = intendedStart - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (batchEmpty()) {
+                        batchIntendedStart = intendedStart;
+                    }
+                } else if (testOpts.opsPerSecond > 0) {
+                    //First time randomise
+                    Thread.sleep((int) Math.floor(c == 1 ? rng.nextDouble() * sleeptimems : sleeptimems));
+                }
+
+                if (workflow == null) {
+                    runOp(pickOp(rng.nextDouble()));
+                } else {
+                    runWorkflowStep();
+                }
+
+                if (c % testOpts.batchSize == 0 && !batchEmpty()) {
+                    flushBatch();
+                }
+            }
+            if (!batchEmpty()) {
+                flushBatch();
+            }
+            drain();
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getMessage());
+            if (testOpts.debug)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param r from 0 up to 1, where it falls in the op mix
+     */
+    POCopType pickOp(double r) {
+        int randop = (int) (r * mix[mix.length - 1]);
+        int op = 0;
+        while (op < mix.length - 1 && randop >= mix[op]) {
+            op++;
+        }
+        return MIX[op];
+    }
+
+    private void runOp(POCopType opType) throws InterruptedException {
+        switch (opType) {
+            case INSERTS:
+                insertNewRecord();
+                break;
+            case KEYQUERIES:
+                rotateCollection();
+                keyQuery(new Document("_id", pickKey(POCopType.KEYQUERIES)), false);
+                break;
+            case RANGEQUERIES:
+                rangeQuery();
+                break;
+            case UPDATES:
+                // An in place single field update
+                // fld 0 - set to random number
+                updateSingleRecord(pickKey(POCopType.UPDATES));
+                break;
+            case ARRAYUPDATES:
+                updateArrayElement(pickKey(POCopType.ARRAYUPDATES));
+                break;
+            case INDEXQUERIES:
+            case INDEXRANGEQUERIES:
+                indexQuery(opType);
+                break;
+            case AGGREGATIONS:
+                rotateCollection();
+                aggregate(aggregation.pipeline(pickKey(POCopType.AGGREGATIONS)));
+                break;
+            case TRANSACTIONS:
+                transaction();
+                break;
+            default:
+                deleteRecords();
+                break;
+        }
+    }
+
+    // Following a preset workflow
+    private void runWorkflowStep() throws InterruptedException {
+        workflowStep = workflow.next(workflowStep, rng);
+        if (workflowStep >= workflow.length()) {
+            // Start it again with an empty stack
+            keyStack.clear();
+            workflowStep = workflow.next(0, rng);
+        }
+        if (workflowStep >= workflow.length()) {
+            return;
+        }
+        Document top = keyStack.isEmpty() ? null : keyStack.get(keyStack.size() - 1);
+        switch (workflow.op(workflowStep)) {
+            case INSERT:
+                // Insert a new record, push it's key onto our stack
+                keyStack.add(new Document("w", workerID).append("i", insertNewRecord()));
+                break;
+            case UPDATE:
+                if (top != null) {
+                    updateSingleRecord(top);
+                }
+                break;
+            case ARRAYUPDATE:
+                if (top != null) {
+                    updateArrayElement(top);
+                }
+                break;
+            case DELETE:
+                // In the batch so it stays in order with the insert
+                if (top != null) {
+                    keyStack.remove(keyStack.size() - 1);
+                    bulkWriter.add(new DeleteOneModel<BsonDocument>(new Document("_id", top)));
+                }
+                break;
+            case POP:
+                // Pop the top thing off the stack
+                if (top != null) {
+                    keyStack.remove(keyStack.size() - 1);
+                }
+                break;
+            case KEYQUERY:
+                // Find a new record an put it on the stack
+                rotateCollection();
+                Document r = keyQuery(new Document("_id", pickKey(POCopType.KEYQUERIES)), true);
+                if (r != null) {
+                    keyStack.add((Document) r.get("_id"));
+                }
+                break;
+            case RANGEQUERY:
+                rangeQuery();
+                break;
+            case THINK:
+                Thread.sleep(workflow.arg(workflowStep));
+                break;
+            default:
+                break;
+        }
+        workflowStep++;
+    }
+
+    private void rangeQuery() throws InterruptedException {
+        rotateCollection();
+        Document start = rangeStart(testOpts.keySpace, keyDists[POCopType.RANGEQUERIES.ordinal()], rng, workerID,
+                deleteFrom, written.get());
+        find(POCopType.RANGEQUERIES, new Document("_id", new Document("$gt", start)), projection, null, testOpts.rangeDocs);
+    }
+
+    /**
+     * An equality or range query on one of the -x indexed fields
+     */
+    private void indexQuery(POCopType opType) throws InterruptedException {
+        rotateCollection();
+        int field = indexQueries.pickField(opType);
+        Bson fieldProjection = testOpts.coveredQueries ? indexQueries.coveredProjection(field) : null;
+        Bson sort = testOpts.indexSort && opType == POCopType.INDEXRANGEQUERIES ? indexQueries.sort(field) : null;
+        find(opType, indexQueries.filter(opType, field), fieldProjection, sort, testOpts.rangeDocs);
+    }
+
+    private void updateSingleRecord(Document key) throws InterruptedException {
+        Document query = new Document("_id", key);
+        Document change = updateChange();
+        if (testOpts.findandmodify) {
+            //These are immediate not batches
+            rotateCollection();
+            findAndModify(POCopType.UPDATES, query, change);
+        } else {
+            batchUpdate(POCopType.UPDATES, new UpdateManyModel<BsonDocument>(query, change));
+        }
+    }
+
+    // fld 0 set to a random number, or with -n all the fields of a new record
+    private Document updateChange() {
+        int updateFields = (testOpts.updateFields <= testOpts.numFields) ? testOpts.updateFields : testOpts.numFields;
+        if (updateFields == 1) {
+            long changedfield = (long) (rng.nextDouble() * testOpts.NUMBER_SIZE);
+            Document fields = new Document("fld0", changedfield);
+            if (testOpts.changeStreams > 0) {
+                fields.append(TestRecord.WRITE_TIME, TestRecord.nowMicros());
+            }
+            return new Document("$set", fields);
+        }
+        TestRecord tr = createNewRecord();
+        tr.internalDoc.remove("_id");
+        return new Document("$set", tr.internalDoc);
+    }
+
+    /**
+     * $inc one element of the X by Y "arr" array of a record, the element is
+     * picked with the same distribution as the record
+     */
+    private void updateArrayElement(Document key) throws InterruptedException {
+        Document query = new Document("_id", key);
+        String element = "arr." + arrayTopDist.next(rng, testOpts.arraytop)
+                + "." + arrayNextDist.next(rng, testOpts.arraynext);
+        Document change = new Document("$inc", new Document(element, 1));
+        if (testOpts.changeStreams > 0) {
+            change.append("$set", new Document(TestRecord.WRITE_TIME, TestRecord.nowMicros()));
+        }
+        if (testOpts.findandmodify) {
+            rotateCollection();
+            findAndModify(POCopType.ARRAYUPDATES, query, change);
+        } else {
+            batchUpdate(POCopType.ARRAYUPDATES, new UpdateOneModel<BsonDocument>(query, change));
+        }
+    }
+
+    /**
+     * Read then update --txnsize records in one transaction, each from any of
+     * the -y collections
+     */
+    private void transaction() throws InterruptedException {
+        List<C> targets = new ArrayList<C>(testOpts.transactionSize);
+        List<Document> keys = new ArrayList<Document>(testOpts.transactionSize);
+        List<Document> changes = new ArrayList<Document>(testOpts.transactionSize);
+        for (int i = 0; i < testOpts.transactionSize; i++) {
+            targets.add(colls.get(rng.nextInt(colls.size())));
+            keys.add(new Document("_id", pickKey(POCopType.TRANSACTIONS)));
+            changes.add(updateChange());
+        }
+        transaction(targets, keys, changes);
+    }
+
+    /**
+     * Add a delete to the batch as --deletemode says, oldest and range only
+     * take records already written so they can't pass an insert
+     */
+    private void deleteRecords() {
+        int upTo = written.get();
+        switch (testOpts.deleteMode) {
+            case RANDOM:
+                bulkWriter.add(new DeleteOneModel<BsonDocument>(new Document("_id", pickKey(POCopType.DELETES))));
+                break;
+            case RANGE:
+                int to = Math.min(deleteFrom + testOpts.rangeDocs, upTo);
+                if (to > deleteFrom) {
+                    bulkWriter.add(new DeleteManyModel<BsonDocument>(deleteRange(workerID, deleteFrom, to)));
+                    deleteFrom = to;
+                }
+                break;
+            default:
+                if (deleteFrom < upTo) {
+                    bulkWriter.add(new DeleteOneModel<BsonDocument>(new Document("_id",
+                            new Document("w", workerID).append("i", deleteFrom++))));
+                }
+                break;
+        }
+        if (testOpts.keySpace != null) {
+            testOpts.keySpace.deleted(workerID, deleteFrom);
+        }
+    }
+
+    private TestRecord createNewRecord() {
+        int[] arr = new int[2];
+        arr[0] = testOpts.arraytop;
+        arr[1] = testOpts.arraynext;
+        TestRecord tr = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen,
+                workerID, sequence++, testOpts.NUMBER_SIZE,
+                arr, testOpts.blobSize, rng);
+        stamp(tr, testOpts);
+        return tr;
+    }
+
+    /**
+     * @return the sequence number of the new record
+     */
+    private int insertNewRecord() {
+        int seq = sequence;
+        if (rawGenerator != null) {
+            bulkWriter.add(new InsertOneModel<BsonDocument>(rawGenerator.writeRaw(rawBuffer, workerID, sequence++)));
+            return seq;
+        }
+        TestRecord tr;
+        if (recordPool == null) {
+            tr = createNewRecord();
+        } else {
+            if (nextRecord < recordPool.size()) {
+                tr = recordPool.get(nextRecord);
+                tr.refresh(workerID, sequence++);
+            } else {
+                tr = createNewRecord();
+                recordPool.add(tr);
+            }
+            nextRecord++;
+        }
+        // The same wrapping the driver would do for a Document collection
+        bulkWriter.add(new InsertOneModel<BsonDocument>(new BsonDocumentWrapper<Document>(tr.internalDoc, documentCodec)));
+        return seq;
+    }
+
+    private void batchUpdate(POCopType opType, WriteModel<BsonDocument> update) throws InterruptedException {
+        if (workflow == null) {
+            (opType == POCopType.ARRAYUPDATES ? arrayWriter : bulkWriter).add(update);
+            return;
+        }
+        if (opType != batchUpdateType && !bulkWriter.isEmpty()) {
+            flushBatch();
+            batchIntendedStart = intendedStart;
+        }
+        batchUpdateType = opType;
+        bulkWriter.add(update);
+    }
+
+    private boolean batchEmpty() {
+        return bulkWriter.isEmpty() && arrayWriter.isEmpty();
+    }
+
+    private void flushBatch() throws InterruptedException {
+        rotateCollection();
+        if (!bulkWriter.isEmpty()) {
+            flush(newBulkWrite(bulkWriter, batchUpdateType));
+        }
+        if (!arrayWriter.isEmpty()) {
+            flush(newBulkWrite(arrayWriter, POCopType.ARRAYUPDATES));
+        }
+        batchUpdateType = POCopType.UPDATES;
+        if (batchesInFlight) {
+            // The driver owns the batch once it is sent so start a new one
+            bulkWriter = new ArrayList<WriteModel<BsonDocument>>();
+            arrayWriter = new ArrayList<WriteModel<BsonDocument>>();
+            if (rawBuffer != null) {
+                rawBuffer = new BasicOutputBuffer();
+            }
+        } else {
+            bulkWriter.clear();
+            arrayWriter.clear();
+            nextRecord = 0;
+            if (rawBuffer != null) {
+                rawBuffer.truncateToPosition(0);
+            }
+        }
+        // Check and see if we need to rejig sharding
+        if (numShards != testOpts.numShards) {
+            ReviewShards();
+        }
+    }
+
+    private POCBulkWrite newBulkWrite(List<WriteModel<BsonDocument>> batch, POCopType updateType) {
+        // A workflow may update or delete what it has just inserted
+        POCBulkWrite bulkWrite = new POCBulkWrite(batch, workflow != null, updateType);
+        bulkWrite.intendedStart = batchIntendedStart;
+        bulkWrite.lastSequence = sequence;
+        synchronized (unwritten) {
+            unwritten.add(bulkWrite);
+        }
+        return bulkWrite;
+    }
+}
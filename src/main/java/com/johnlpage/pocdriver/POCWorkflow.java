@@ -0,0 +1,289 @@
+package com.johnlpage.pocdriver;
+
+
+import org.apache.commons.cli.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * A -v workflow compiled once into a flat list of ops, so a worker steps
+ * through it with an index and a switch rather than looking at the string.
+ * <p>
+ * i, u, k and p are as they always were. r runs a range query, d deletes
+ * the record on top of the stack and pops it, g $incs an array element of
+ * it and t200 waits 200 milliseconds. A number after an op or a (group)
+ * repeats it, and [ku:3|i] picks one of its branches each time through,
+ * in proportion to the weights after the colons (default 1).
+ */
+class POCWorkflow {
+
+    enum Op {
+        INSERT, UPDATE, KEYQUERY, POP, RANGEQUERY, DELETE, ARRAYUPDATE, THINK,
+        // Not run by a worker, only say where to go next
+        BRANCH, JUMP
+    }
+
+    // Once repeats are written out
+    static final int MAX_OPS = 1000000;
+
+    private final Op[] ops;
+    // Milliseconds for THINK, the branch for BRANCH and how far to go for JUMP
+    private final int[] args;
+    // For each branch, the running total of the weights and how far from
+    // the BRANCH each way starts
+    private final int[][] branchWeights;
+    private final int[][] branchOffsets;
+
+    private POCWorkflow(Compiler compiler) {
+        ops = compiler.ops.toArray(new Op[0]);
+        args = new int[ops.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compiler.args.get(i);
+        }
+        branchWeights = compiler.branchWeights.toArray(new int[0][]);
+        branchOffsets = compiler.branchOffsets.toArray(new int[0][]);
+    }
+
+    static POCWorkflow compile(String workflow) throws ParseException {
+        Compiler compiler = new Compiler(workflow);
+        compiler.sequence();
+        if (compiler.pos < workflow.length()) {
+            throw compiler.error("Unexpected '" + workflow.charAt(compiler.pos) + "'");
+        }
+        if (compiler.ops.isEmpty()) {
+            throw new ParseException("The workflow has no operations");
+        }
+        return new POCWorkflow(compiler);
+    }
+
+    int length() {
+        return ops.length;
+    }
+
+    Op op(int step) {
+        return ops[step];
+    }
+
+    int arg(int step) {
+        return args[step];
+    }
+
+    /**
+     * @return whether any step of the workflow is an op of that type
+     */
+    boolean runs(POCopType opType) {
+        for (Op op : ops) {
+            if (opType(op) == opType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static POCopType opType(Op op) {
+        switch (op) {
+            case INSERT:
+                return POCopType.INSERTS;
+            case UPDATE:
+                return POCopType.UPDATES;
+            case ARRAYUPDATE:
+                return POCopType.ARRAYUPDATES;
+            case DELETE:
+                return POCopType.DELETES;
+            case KEYQUERY:
+                return POCopType.KEYQUERIES;
+            case RANGEQUERY:
+                return POCopType.RANGEQUERIES;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the first op to run from step on, after taking any branches
+     * and jumps, or length() if there are none before the end
+     */
+    int next(int step, Random rng) {
+        while (step < ops.length) {
+            switch (ops[step]) {
+                case BRANCH:
+                    int[] weights = branchWeights[args[step]];
+                    int pick = rng.nextInt(weights[weights.length - 1]);
+                    int way = 0;
+                    while (pick >= weights[way]) {
+                        way++;
+                    }
+                    step += branchOffsets[args[step]][way];
+                    break;
+                case JUMP:
+                    step += args[step];
+                    break;
+                default:
+                    return step;
+            }
+        }
+        return step;
+    }
+
+    /**
+     * Recursive descent over the workflow string, writing ops as it goes.
+     * Jumps and branches are relative so a repeat is a plain copy.
+     */
+    private static class Compiler {
+        private final String workflow;
+        private int pos = 0;
+        private final List<Op> ops = new ArrayList<Op>();
+        private final List<Integer> args = new ArrayList<Integer>();
+        private final List<int[]> branchWeights = new ArrayList<int[]>();
+        private final List<int[]> branchOffsets = new ArrayList<int[]>();
+
+        Compiler(String workflow) {
+            this.workflow = workflow;
+        }
+
+        ParseException error(String message) {
+            return new ParseException(message + " at position " + pos + " of workflow " + workflow);
+        }
+
+        private boolean more() {
+            return pos < workflow.length();
+        }
+
+        private char peek() {
+            return workflow.charAt(pos);
+        }
+
+        private void emit(Op op, int arg) throws ParseException {
+            if (ops.size() >= MAX_OPS) {
+                throw error("Workflow has more than " + MAX_OPS + " ops once repeated");
+            }
+            ops.add(op);
+            args.add(arg);
+        }
+
+        // Up to the end, a | or a closing bracket
+        void sequence() throws ParseException {
+            while (more() && ")]|:".indexOf(peek()) < 0) {
+                int start = ops.size();
+                atom();
+                int end = ops.size();
+                if (more() && Character.isDigit(peek())) {
+                    int times = number();
+                    if (times < 1) {
+                        throw error("Repeat count must be at least 1");
+                    }
+                    for (int t = 1; t < times; t++) {
+                        for (int i = start; i < end; i++) {
+                            emit(ops.get(i), args.get(i));
+                        }
+                    }
+                }
+            }
+        }
+
+        private void atom() throws ParseException {
+            char c = peek();
+            pos++;
+            switch (c) {
+                case 'i': emit(Op.INSERT, 0); break;
+                case 'u': emit(Op.UPDATE, 0); break;
+                case 'k': emit(Op.KEYQUERY, 0); break;
+                case 'p': emit(Op.POP, 0); break;
+                case 'r': emit(Op.RANGEQUERY, 0); break;
+                case 'd': emit(Op.DELETE, 0); break;
+                case 'g': emit(Op.ARRAYUPDATE, 0); break;
+                case 't':
+                    if (!more() || !Character.isDigit(peek())) {
+                        throw error("t needs a number of milliseconds");
+                    }
+                    emit(Op.THINK, number());
+                    break;
+                case '(':
+                    sequence();
+                    expect(')');
+                    break;
+                case '[':
+                    branch();
+                    break;
+                default:
+                    pos--;
+                    throw error("Unknown workflow op '" + c + "'");
+            }
+        }
+
+        private void branch() throws ParseException {
+            int at = ops.size();
+            // Taken now, branches inside this one add theirs before we're done
+            int table = branchWeights.size();
+            branchWeights.add(null);
+            branchOffsets.add(null);
+            emit(Op.BRANCH, table);
+            List<Integer> weights = new ArrayList<Integer>();
+            List<Integer> offsets = new ArrayList<Integer>();
+            List<Integer> jumps = new ArrayList<Integer>();
+            while (true) {
+                offsets.add(ops.size() - at);
+                sequence();
+                int weight = 1;
+                if (more() && peek() == ':') {
+                    pos++;
+                    if (!more() || !Character.isDigit(peek())) {
+                        throw error("A branch weight must be a number");
+                    }
+                    weight = number();
+                }
+                if (weight < 1) {
+                    throw error("A branch weight must be at least 1");
+                }
+                weights.add(weight);
+                if (more() && peek() == '|') {
+                    pos++;
+                    jumps.add(ops.size());
+                    emit(Op.JUMP, 0);
+                } else {
+                    break;
+                }
+            }
+            expect(']');
+            int end = ops.size();
+            for (int jump : jumps) {
+                args.set(jump, end - jump);
+            }
+            int[] cumulative = new int[weights.size()];
+            int[] relative = new int[offsets.size()];
+            long total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += weights.get(i);
+                if (total > Integer.MAX_VALUE) {
+                    throw error("Branch weights add up to too much");
+                }
+                cumulative[i] = (int) total;
+                relative[i] = offsets.get(i);
+            }
+            branchWeights.set(table, cumulative);
+            branchOffsets.set(table, relative);
+        }
+
+        private void expect(char c) throws ParseException {
+            if (!more() || peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private int number() throws ParseException {
+            int start = pos;
+            while (more() && Character.isDigit(peek())) {
+                pos++;
+            }
+            try {
+                return Integer.parseInt(workflow.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("Number too big");
+            }
+        }
+    }
+}
@@ -2,16 +2,29 @@ package com.johnlpage.pocdriver;
 
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class POCopStats {
+    // Only used by the reporter
     public AtomicLong intervalCount;
-    public AtomicLong totalOpsDone;
-    public AtomicLong slowOps;
+    // Workers add to these from every thread so they are striped, the
+    // total is only worked out when something reads it
+    public LongAdder totalOpsDone;
+    public LongAdder slowOps;
+    public LongAdder errors;
 
-    POCopStats() {
+    // Measured from when the op was actually sent
+    POCLatencyRecorder latency;
+    // Measured from when an open loop schedule intended it to be sent
+    POCLatencyRecorder correctedLatency;
+
+    POCopStats(int stripes) {
         intervalCount = new AtomicLong(0);
-        totalOpsDone = new AtomicLong(0);
-        slowOps = new AtomicLong(0);
+        totalOpsDone = new LongAdder();
+        slowOps = new LongAdder();
+        errors = new LongAdder();
+        latency = new POCLatencyRecorder(stripes);
+        correctedLatency = new POCLatencyRecorder(stripes);
     }
 }
@@ -0,0 +1,31 @@
+package com.johnlpage.pocdriver;
+
+
+/**
+ * The kinds of operation we keep stats for, in the order they are reported
+ */
+public enum POCopType {
+    INSERTS("inserts"),
+    KEYQUERIES("keyqueries"),
+    UPDATES("updates"),
+    RANGEQUERIES("rangequeries"),
+    ARRAYUPDATES("arrayupdates"),
+    INDEXQUERIES("indexqueries"),
+    INDEXRANGEQUERIES("indexrangequeries"),
+    AGGREGATIONS("aggregations"),
+    CHANGEEVENTS("changeevents"),
+    TRANSACTIONS("transactions"),
+    TXNCOMMITS("txncommits"),
+    DELETES("deletes");
+
+    private final String label;
+
+    POCopType(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
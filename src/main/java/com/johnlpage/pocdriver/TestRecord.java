@@ -3,8 +3,12 @@ package com.johnlpage.pocdriver;
 
 import java.util.*;
 
+import org.bson.BsonBinary;
 import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
 import org.bson.types.Binary;
 
 import de.svenjacobs.loremipsum.LoremIpsum;
@@ -17,21 +21,94 @@ public class TestRecord {
 
 	Document internalDoc;
 	private Random rng;
+	private int nFields;
+	private int depth;
+	private int stringLength;
+	private long numberSize;
+	private boolean hasArray;
 	private static ArrayList<ArrayList<Integer>> ar;
 	private static String loremText = null;
 
+	// Holds when the record was made, in microseconds, with --changestreams
+	static final String WRITE_TIME = "ts";
+	// The wall clock to the microsecond, from one reading of the millisecond one
+	private static final long START_MICROS = System.currentTimeMillis() * 1000;
+	private static final long START_NANOS = System.nanoTime();
+
+	private boolean stampWriteTime = false;
+	// When the record was written as a Date, for a TTL index to expire it by
+	static final String CREATED = "created";
+	private boolean stampCreated = false;
+
 	private static Binary blobData = null;
+	private static BsonBinary blobBson = null;
+
+	// Names are the same in every record so build them once
+	private static final String[] FIELD_NAMES = new String[1024];
+	private static final String[] NODE_NAMES = new String[64];
+	static {
+		for (int i = 0; i < FIELD_NAMES.length; i++) FIELD_NAMES[i] = "fld" + i;
+		for (int i = 0; i < NODE_NAMES.length; i++) NODE_NAMES[i] = "node" + i;
+	}
 
-	private String CreateString(int length) {
+	// Text values are picked from slices cut once per text length
+	private static final int MAX_SLICES = 4096;
+	private static final int MAX_SLICE_CHARS = 8 * 1024 * 1024;
+	private static volatile TextSlices textSlices = null;
+
+	private static class TextSlices {
+		final int length;
+		final String[] slices;
+
+		TextSlices(int length, String[] slices) {
+			this.length = length;
+			this.slices = slices;
+		}
+	}
+
+	static String fieldName(int fieldNo) {
+		return fieldNo < FIELD_NAMES.length ? FIELD_NAMES[fieldNo] : "fld" + fieldNo;
+	}
+
+	private static String nodeName(int nodeNo) {
+		return nodeNo < NODE_NAMES.length ? NODE_NAMES[nodeNo] : "node" + nodeNo;
+	}
 
+	private static synchronized String getLoremText() {
 		if( loremText == null )
 		{
-			loremText = "";
 			LoremIpsum loremIpsum = new LoremIpsum();
 			//System.out.println("Generating sample data");
 			loremText = loremIpsum.getWords( 1000 );
 		}
+		return loremText;
+	}
+
+	String CreateString(int length) {
+		TextSlices ts = textSlices;
+		if (ts == null || ts.length != length) {
+			ts = cutSlices(length);
+		}
+		return ts.slices[rng.nextInt(ts.slices.length)];
+	}
+
+	private static synchronized TextSlices cutSlices(int length) {
+		TextSlices ts = textSlices;
+		if (ts == null || ts.length != length) {
+			int count = Math.max(1, Math.min(MAX_SLICES, MAX_SLICE_CHARS / Math.max(length, 1)));
+			String[] slices = new String[count];
+			Random r = new Random();
+			for (int i = 0; i < count; i++) {
+				slices[i] = cutSlice(length, r);
+			}
+			ts = new TextSlices(length, slices);
+			textSlices = ts;
+		}
+		return ts;
+	}
 
+	private static String cutSlice(int length, Random rng) {
+		String loremText = getLoremText();
 
 		//System.out.println("Done");
 
@@ -74,8 +151,14 @@ public class TestRecord {
 	// A thread starting will find out what it's highest was
 
 	private void AddOID(int workerid, int sequence) {
-		Document oid = new Document("w",workerid).append("i", sequence);
-		internalDoc.append("_id", oid);
+		Document oid = (Document) internalDoc.get("_id");
+		if (oid == null) {
+			oid = new Document("w",workerid).append("i", sequence);
+			internalDoc.append("_id", oid);
+		} else {
+			oid.put("w", workerid);
+			oid.put("i", sequence);
+		}
 	}
 
 	// Just so we always know what the type of a given field is
@@ -111,8 +194,20 @@ public class TestRecord {
 	}
 
 	TestRecord(int nFields, int depth, int stringLength, int workerID, int sequence, long numberSize, int[] array, int binsize) {
+		this(nFields, depth, stringLength, workerID, sequence, numberSize, array, binsize, new Random());
+	}
+
+	/**
+	 * @param rng Random to draw values from, callers making many records
+	 *            should pass in one of their own rather than create one each
+	 */
+	TestRecord(int nFields, int depth, int stringLength, int workerID, int sequence, long numberSize, int[] array, int binsize, Random rng) {
 		internalDoc = new Document();
-		rng = new Random();
+		this.rng = rng;
+		this.nFields = nFields;
+		this.depth = depth;
+		this.stringLength = stringLength;
+		this.numberSize = numberSize;
 
 		// Always a field 0
 		AddOID(workerID, sequence);
@@ -131,16 +226,126 @@ public class TestRecord {
 				}
 			}
 			internalDoc.append("arr", ar);
+			hasArray = true;
 		}
 		if (blobData == null) {
 			byte[] data = new byte[binsize * 1024];
 			rng.nextBytes(data);
 			blobData = new Binary(BsonBinarySubType.BINARY, data);
+			blobBson = new BsonBinary(BsonBinarySubType.BINARY, data);
 		}
 
 		internalDoc.append("bin", blobData);
 	}
 
+	/**
+	 * Turn this into the next record without building a new one - the same
+	 * keys, sub-documents and Dates are kept and only _id and the values change.
+	 * Anything still holding a reference to the old contents will see the new ones.
+	 */
+	void refresh(int workerID, int sequence) {
+		AddOID(workerID, sequence);
+		addFields(internalDoc, 0, nFields, depth, stringLength, numberSize);
+		if (stampCreated) {
+			((Date) internalDoc.get(CREATED)).setTime(System.currentTimeMillis());
+		}
+		if (stampWriteTime) {
+			internalDoc.put(WRITE_TIME, nowMicros());
+		}
+	}
+
+	/**
+	 * Give this and every record it is refreshed or written into a WRITE_TIME
+	 */
+	void stampWriteTime() {
+		stampWriteTime = true;
+		internalDoc.put(WRITE_TIME, nowMicros());
+	}
+
+	/**
+	 * Give this and every record it is refreshed or written into a CREATED,
+	 * ahead of any WRITE_TIME
+	 */
+	void stampCreated() {
+		stampCreated = true;
+		internalDoc.put(CREATED, new Date());
+	}
+
+	static long nowMicros() {
+		return START_MICROS + (System.nanoTime() - START_NANOS) / 1000;
+	}
+
+	/**
+	 * Write the next record straight into out as BSON with the same shape and
+	 * kinds of values as internalDoc, without building a Document on the way.
+	 * internalDoc itself is left alone.
+	 *
+	 * @return a RawBsonDocument over the bytes just written, it shares the
+	 * buffer's array so is only good until out is truncated
+	 */
+	RawBsonDocument writeRaw(BasicOutputBuffer out, int workerID, int sequence) {
+		int start = out.getPosition();
+		BsonBinaryWriter writer = new BsonBinaryWriter(out);
+		writer.writeStartDocument();
+		writer.writeStartDocument("_id");
+		writer.writeInt32("w", workerID);
+		writer.writeInt32("i", sequence);
+		writer.writeEndDocument();
+
+		writeFields(writer, 0, nFields, depth);
+
+		if (hasArray) {
+			writer.writeStartArray("arr");
+			for (ArrayList<Integer> sa : ar) {
+				writer.writeStartArray();
+				for (Integer v : sa) {
+					writer.writeInt32(v);
+				}
+				writer.writeEndArray();
+			}
+			writer.writeEndArray();
+		}
+		writer.writeBinaryData("bin", blobBson);
+		if (stampCreated) {
+			writer.writeDateTime(CREATED, System.currentTimeMillis());
+		}
+		if (stampWriteTime) {
+			writer.writeInt64(WRITE_TIME, nowMicros());
+		}
+		writer.writeEndDocument();
+		return new RawBsonDocument(out.getInternalBuffer(), start, out.getPosition() - start);
+	}
+
+	/**
+	 * The BSON writing twin of addFields - field names, types and nesting must match
+	 */
+	private int writeFields(BsonBinaryWriter writer, int seq, int nFields, int depth) {
+		int fieldNo = seq;
+		if (depth > 0) {
+			int perLevel = (int) Math.pow(nFields, 1f / (depth + 1));
+			for (int i = 0; i < perLevel; i++) {
+				writer.writeStartDocument(nodeName(i));
+				fieldNo += writeFields(writer, fieldNo, nFields / perLevel, depth - 1);
+				writer.writeEndDocument();
+			}
+		}
+		while (fieldNo < nFields + seq) {
+			int fType = getFieldType(fieldNo);
+			String fieldName = fieldName(fieldNo);
+			if (fType == 0) {
+				writer.writeInt64(fieldName, (long) Math.abs(Math.floor(rng.nextGaussian()
+						* numberSize)));
+			} else if (fieldNo == 1 || fType == 2) {
+				writer.writeDateTime(fieldName, (long) (System.currentTimeMillis() - Math
+						.abs(Math.floor(rng.nextGaussian() * 100000000 * 3000))));
+			} else {
+				writer.writeString(fieldName, CreateString(stringLength));
+			}
+			fieldNo++;
+		}
+		return fieldNo - seq;
+	}
+
 	/**
 	 * @param seq	 The sequence for this document as a whole
 	 * @param nFields The numbers of fields for this sub-document
@@ -152,44 +357,81 @@ public class TestRecord {
 			// we need to create nodes not leaves
 			int perLevel = (int) Math.pow(nFields, 1f / (depth + 1));
 			for (int i = 0; i < perLevel; i++) {
-				Document node = new Document();
-				doc.append("node" + i, node);
+				String nodeName = nodeName(i);
+				Document node = (Document) doc.get(nodeName);
+				if (node == null) {
+					node = new Document();
+					doc.append(nodeName, node);
+				}
 				fieldNo += addFields(node, fieldNo, nFields / perLevel, depth - 1, stringLength, numberSize);
 			}
 		}
 		// fields
 		while (fieldNo < nFields + seq) {
 			int fType = getFieldType(fieldNo);
+			String fieldName = fieldName(fieldNo);
 			if (fType == 0) {
 				// Field should always be a long this way
 
 				long r = (long) Math.abs(Math.floor(rng.nextGaussian()
 						* numberSize));
 
-				doc.append("fld" + fieldNo, r);
+				doc.put(fieldName, r);
 			} else if (fieldNo == 1 || fType == 2) // Field 2 is always a date
 			// as is every 5th
 			{
 				// long r = (long) Math.abs(Math.floor(rng.nextGaussian() *
 				// Long.MAX_VALUE));
-				Date now = new Date();
 				// Subtract up to a few years
-				long t = now.getTime();
+				long t = System.currentTimeMillis();
 				// Push it back 30 years or so
 				t = (long) (t - Math
 						.abs(Math.floor(rng.nextGaussian() * 100000000 * 3000)));
-				now.setTime(t);
-				doc.append("fld" + fieldNo, now);
+				Object old = doc.get(fieldName);
+				if (old instanceof Date) {
+					((Date) old).setTime(t);
+				} else {
+					doc.put(fieldName, new Date(t));
+				}
 			} else {
 				// put in a string
 				String fieldContent = CreateString(stringLength);
-				doc.append("fld" + fieldNo, fieldContent);
+				doc.put(fieldName, fieldContent);
 			}
 			fieldNo++;
 		}
 		return fieldNo - seq;
 	}
 
+	/**
+	 * A value like the ones field fieldNo gets in new records, to query for
+	 */
+	Object sampleValue(int fieldNo) {
+		int fType = getFieldType(fieldNo);
+		if (fType == 0) {
+			return (long) Math.abs(Math.floor(rng.nextGaussian() * numberSize));
+		} else if (fieldNo == 1 || fType == 2) {
+			return new Date((long) (System.currentTimeMillis() - Math
+					.abs(Math.floor(rng.nextGaussian() * 100000000 * 3000))));
+		}
+		return CreateString(stringLength);
+	}
+
+	static boolean isDateField(int fieldNo) {
+		return fieldNo == 1 || getFieldType(fieldNo) == 2;
+	}
+
+	static boolean isTextField(int fieldNo) {
+		return getFieldType(fieldNo) == 1;
+	}
+
+	/**
+	 * @param path a name from listFields
+	 */
+	static int fieldNo(String path) {
+		return Integer.parseInt(path.substring(path.lastIndexOf("fld") + 3));
+	}
+
     public List<String> listFields() {
         List<String> fields = new ArrayList<String>();
         collectFields(internalDoc, "", fields);
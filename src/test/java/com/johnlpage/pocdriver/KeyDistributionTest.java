@@ -0,0 +1,108 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeyDistributionTest {
+
+    private static final int SAMPLES = 200000;
+
+    // How many of SAMPLES picks from n records land in [from, to)
+    private int countBetween(KeyDistribution dist, int n, int from, int to) {
+        Random rng = new Random(42);
+        int count = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            int pick = dist.next(rng, n);
+            assertTrue(pick >= 0 && pick < n);
+            if (pick >= from && pick < to) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testEveryKindStaysInRange() {
+        for (String spec : new String[]{"uniform", "zipfian", "scrambled", "latest", "hotspot", "exponential"}) {
+            KeyDistribution dist = KeyDistribution.create(spec);
+            Random rng = new Random(1);
+            assertEquals(spec, 0, dist.next(rng, 0));
+            for (int n = 1; n < 5000; n++) {
+                int pick = dist.next(rng, n);
+                assertTrue(spec, pick >= 0 && pick < n);
+            }
+        }
+    }
+
+    @Test
+    public void testZetaApproximationMatchesSum() {
+        for (double theta : new double[]{0.5, 0.99}) {
+            KeyDistribution.Zipfian zipfian = new KeyDistribution.Zipfian(theta);
+            int n = 3000000;
+            double sum = 0;
+            for (int i = n; i >= 1; i--) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            assertEquals(sum, zipfian.zeta(n), sum * 1e-9);
+        }
+    }
+
+    @Test
+    public void testSkewGoesWhereItShould() {
+        int n = 1000000;
+        // The hottest 1% of a 0.99 zipfian gets most of the picks
+        assertTrue(countBetween(KeyDistribution.create("zipfian"), n, 0, n / 100) > SAMPLES / 2);
+        assertTrue(countBetween(KeyDistribution.create("latest"), n, n - n / 100, n) > SAMPLES / 2);
+        // A lower theta is less skewed
+        assertTrue(countBetween(KeyDistribution.create("zipfian:0.5"), n, 0, n / 100) < SAMPLES / 5);
+        // Scrambled is as skewed but not towards either end
+        assertTrue(countBetween(KeyDistribution.create("scrambled"), n, 0, n / 100) < SAMPLES / 20);
+        assertEquals(0.8, countBetween(KeyDistribution.create("hotspot:0.2:0.8"), n, 0, n / 5)
+                / (double) SAMPLES, 0.01);
+        assertEquals(0.95, countBetween(KeyDistribution.create("exponential:95:0.1"), n, n - n / 10, n)
+                / (double) SAMPLES, 0.01);
+        assertEquals(0.5, countBetween(KeyDistribution.create("uniform"), n, 0, n / 2)
+                / (double) SAMPLES, 0.01);
+    }
+
+    @Test
+    public void testPerOpDistributions() throws ParseException {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"-z", "1000", "--keydist", "k=latest:0.9,u=hotspot"});
+        assertEquals("latest:0.9", testOpts.keyDistributions[POCopType.KEYQUERIES.ordinal()]);
+        assertEquals("hotspot", testOpts.keyDistributions[POCopType.UPDATES.ordinal()]);
+        assertEquals("zipfian", testOpts.keyDistributions[POCopType.RANGEQUERIES.ordinal()]);
+    }
+
+    @Test
+    public void testWideExponentialStaysInRange() {
+        // Hardly any of the untruncated distribution falls within the records
+        KeyDistribution dist = KeyDistribution.create("exponential:1:1");
+        Random rng = new Random(3);
+        for (int i = 0; i < SAMPLES; i++) {
+            int pick = dist.next(rng, 1000);
+            assertTrue(pick >= 0 && pick < 1000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExponentialKeysAtMostOne() {
+        KeyDistribution.create("exponential:95:2");
+    }
+
+    @Test
+    public void testMoreOpsHaveDistributions() throws ParseException {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--keydist", "a=latest,t=hotspot,d=zipfian"});
+        assertEquals("latest", testOpts.keyDistributions[POCopType.AGGREGATIONS.ordinal()]);
+        assertEquals("hotspot", testOpts.keyDistributions[POCopType.TRANSACTIONS.ordinal()]);
+        assertEquals("zipfian", testOpts.keyDistributions[POCopType.DELETES.ordinal()]);
+    }
+
+    @Test(expected = ParseException.class)
+    public void testRejectsBadSpec() throws ParseException {
+        new POCTestOptions(new String[]{"--keydist", "zipfian:1.5"});
+    }
+}
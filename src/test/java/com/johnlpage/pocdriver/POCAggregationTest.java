@@ -0,0 +1,34 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class POCAggregationTest {
+
+    private BsonDocument stage(List<Bson> pipeline, int i) {
+        return pipeline.get(i).toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    @Test
+    public void testPipelineTakesAggDocsRecords() throws Exception {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--aggregations", "5", "--aggdocs", "250", "--agglimit", "3"});
+        List<Bson> pipeline = new POCAggregation(testOpts).pipeline(new Document("w", 4).append("i", 1000));
+        assertEquals(4, pipeline.size());
+
+        BsonDocument range = stage(pipeline, 0).getDocument("$match").getDocument("_id");
+        assertEquals(1000, range.getDocument("$gte").getInt32("i").getValue());
+        assertEquals(1250, range.getDocument("$lt").getInt32("i").getValue());
+        assertEquals(4, range.getDocument("$lt").getInt32("w").getValue());
+        // fld2 is the first text field
+        assertEquals("$fld2", stage(pipeline, 1).getDocument("$group").getDocument("_id")
+                .getArray("$substrCP").get(0).asString().getValue());
+        assertEquals(3, stage(pipeline, 3).getInt32("$limit").getValue());
+    }
+}
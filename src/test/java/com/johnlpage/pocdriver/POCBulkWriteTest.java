@@ -0,0 +1,95 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class POCBulkWriteTest {
+
+    private List<WriteModel<BsonDocument>> batch(int inserts, int updates) {
+        List<WriteModel<BsonDocument>> batch = new ArrayList<WriteModel<BsonDocument>>();
+        for (int i = 0; i < inserts; i++) {
+            batch.add(new InsertOneModel<BsonDocument>(new BsonDocument("_id", new BsonInt32(i))));
+        }
+        for (int i = 0; i < updates; i++) {
+            batch.add(new UpdateManyModel<BsonDocument>(new Document("_id", i),
+                    new Document("$set", new Document("fld0", 1))));
+        }
+        return batch;
+    }
+
+    private BulkWriteError error(int code, int index) {
+        return new BulkWriteError(code, "failed", new BsonDocument(), index);
+    }
+
+    @Test
+    public void testUnorderedResendsOnlyFailedWrites() {
+        List<WriteModel<BsonDocument>> batch = batch(4, 2);
+        List<WriteModel<BsonDocument>> failed = POCBulkWrite.failedWrites(batch, Arrays.asList(
+                error(POCBulkWrite.DUPLICATE_KEY, 0),
+                error(POCBulkWrite.DUPLICATE_KEY, 1),
+                error(11602, 3),
+                error(11602, 5)), false);
+        // Inserts with a duplicate key were already written
+        assertEquals(Arrays.asList(batch.get(3), batch.get(5)), failed);
+    }
+
+    @Test
+    public void testOrderedResendsEverythingAfterTheError() {
+        List<WriteModel<BsonDocument>> batch = batch(4, 2);
+        List<WriteModel<BsonDocument>> failed = POCBulkWrite.failedWrites(batch, Arrays.asList(
+                error(POCBulkWrite.DUPLICATE_KEY, 2)), true);
+        assertEquals(batch.subList(3, 6), failed);
+    }
+
+    @Test
+    public void testDuplicateKeyOnUpdateIsResent() {
+        List<WriteModel<BsonDocument>> batch = batch(1, 1);
+        assertFalse(POCBulkWrite.alreadyInserted(batch.get(1), error(POCBulkWrite.DUPLICATE_KEY, 1)));
+        assertTrue(POCBulkWrite.alreadyInserted(batch.get(0), error(POCBulkWrite.DUPLICATE_KEY, 0)));
+    }
+
+    @Test
+    public void testPermanentErrorsAreNotResent() {
+        List<WriteModel<BsonDocument>> batch = batch(2, 2);
+        // Document failed validation and not primary
+        List<WriteModel<BsonDocument>> failed = POCBulkWrite.failedWrites(batch, Arrays.asList(
+                error(121, 1),
+                error(10107, 2),
+                error(121, 3)), false);
+        assertEquals(Arrays.asList(batch.get(2)), failed);
+    }
+
+    @Test
+    public void testRetryableErrors() {
+        assertTrue(POCBulkWrite.retryable(new MongoSocketReadException("reset", new ServerAddress())));
+        assertTrue(POCBulkWrite.retryable(new MongoTimeoutException("no primary")));
+        assertTrue(POCBulkWrite.retryable(new MongoException(11602, "InterruptedDueToReplStateChange")));
+        assertFalse(POCBulkWrite.retryable(new MongoException(10334, "BSONObjectTooLarge")));
+        assertFalse(POCBulkWrite.retryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void testDroppedWritesCountAgainstTheBatchsUpdateType() {
+        POCTestResults testResults = new POCTestResults();
+        POCBulkWrite.recordDropped(testResults, batch(1, 2), POCopType.ARRAYUPDATES);
+        assertEquals(2, (long) testResults.GetErrors(POCopType.ARRAYUPDATES));
+        assertEquals(0, (long) testResults.GetErrors(POCopType.UPDATES));
+        assertEquals(1, (long) testResults.GetErrors(POCopType.INSERTS));
+    }
+}
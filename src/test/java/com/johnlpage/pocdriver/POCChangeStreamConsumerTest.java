@@ -0,0 +1,42 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class POCChangeStreamConsumerTest {
+
+    @Test
+    public void testWriteTimeReachesTheChangeStream() {
+        TestRecord testRecord = new TestRecord(8, 1, 24,
+                123, 0, 1024,
+                new int[]{0, 0}, 128, new Random());
+        testRecord.stampWriteTime();
+        long before = TestRecord.nowMicros();
+        RawBsonDocument raw = testRecord.writeRaw(new BasicOutputBuffer(), 123, 1);
+        TestRecordTest.assertSameShape(testRecord.internalDoc, raw.decode(new DocumentCodec()));
+
+        MongoNamespace namespace = new MongoNamespace("POCDB.POCCOLL");
+        ChangeStreamDocument<RawBsonDocument> insert = new ChangeStreamDocument<RawBsonDocument>(null,
+                namespace, raw, null, OperationType.INSERT, null);
+        long written = POCChangeStreamConsumer.writeTime(insert);
+        assertTrue(written >= before && written <= TestRecord.nowMicros());
+
+        UpdateDescription set = new UpdateDescription(null,
+                new BsonDocument(TestRecord.WRITE_TIME, new BsonInt64(written)));
+        ChangeStreamDocument<RawBsonDocument> update = new ChangeStreamDocument<RawBsonDocument>(null,
+                namespace, null, null, OperationType.UPDATE, set);
+        assertEquals(Long.valueOf(written), POCChangeStreamConsumer.writeTime(update));
+    }
+}
@@ -0,0 +1,65 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import org.HdrHistogram.Histogram;
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class POCDriverMetricsTest {
+
+    private final ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+    private final ConnectionId connectionId = new ConnectionId(serverId);
+
+    @Test
+    public void testRoundTripsByCommand() {
+        POCDriverMetrics metrics = new POCDriverMetrics();
+        ConnectionDescription description = new ConnectionDescription(serverId);
+        metrics.commandSucceeded(new CommandSucceededEvent(1, description, "insert", new BsonDocument(),
+                TimeUnit.MILLISECONDS.toNanos(3)));
+        metrics.commandSucceeded(new CommandSucceededEvent(2, description, "find", new BsonDocument(),
+                TimeUnit.MILLISECONDS.toNanos(1)));
+        metrics.commandSucceeded(new CommandSucceededEvent(3, description, "insert", new BsonDocument(),
+                TimeUnit.MILLISECONDS.toNanos(5)));
+
+        Map<String, Histogram> roundTrips = metrics.GetIntervalRoundTrips();
+        assertEquals(2, roundTrips.get("insert").getTotalCount());
+        assertEquals(5000, roundTrips.get("insert").getMaxValue(), 50);
+        assertEquals(1, roundTrips.get("find").getTotalCount());
+        // Only what came since the last interval
+        assertEquals(0, metrics.GetIntervalRoundTrips().get("insert").getTotalCount());
+    }
+
+    @Test
+    public void testPoolGauges() {
+        POCDriverMetrics metrics = new POCDriverMetrics();
+        metrics.connectionPoolOpened(new ConnectionPoolOpenedEvent(serverId,
+                ConnectionPoolSettings.builder().maxSize(20).build()));
+        metrics.waitQueueEntered(new ConnectionPoolWaitQueueEnteredEvent(serverId));
+        assertEquals(1, metrics.GetWaiting());
+        metrics.waitQueueExited(new ConnectionPoolWaitQueueExitedEvent(serverId));
+        metrics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+        metrics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+        metrics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+
+        assertEquals(20, metrics.GetMaxPoolSize());
+        assertEquals(0, metrics.GetWaiting());
+        assertEquals(1, metrics.GetCheckedOut());
+        assertEquals(1, metrics.GetIntervalCheckoutWait().getTotalCount());
+    }
+}
@@ -0,0 +1,40 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class POCIndexQueriesTest {
+
+    @Test
+    public void testIndexQueriesLookLikeRecords() throws Exception {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"-x", "6", "--depth", "1", "-f", "16"});
+        Random rng = new Random(3);
+        Document record = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, 0, 0,
+                testOpts.NUMBER_SIZE, new int[]{0, 0}, testOpts.blobSize, rng).internalDoc;
+        POCIndexQueries queries = new POCIndexQueries(testOpts, rng);
+        for (int i = 0; i < 100; i++) {
+            for (POCopType opType : new POCopType[]{POCopType.INDEXQUERIES, POCopType.INDEXRANGEQUERIES}) {
+                Document filter = queries.filter(opType, queries.pickField(opType));
+                String field = filter.keySet().iterator().next();
+                Object value = filter.get(field);
+                if (opType == POCopType.INDEXRANGEQUERIES) {
+                    value = ((Document) value).get("$gte");
+                } else {
+                    assertFalse(value instanceof Date);
+                }
+                // The same type as that field has in a record
+                Document parent = record;
+                String[] path = field.split("\\.");
+                for (int p = 0; p < path.length - 1; p++) {
+                    parent = (Document) parent.get(path[p]);
+                }
+                assertEquals(field, parent.get(path[path.length - 1]).getClass(), value.getClass());
+            }
+        }
+    }
+}
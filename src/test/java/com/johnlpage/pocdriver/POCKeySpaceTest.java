@@ -0,0 +1,83 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class POCKeySpaceTest {
+
+    @Test
+    public void testWorkersPickedByHowManyRecordsTheyHave() {
+        POCKeySpace keySpace = new POCKeySpace(4);
+        keySpace.publish(0, 1000);
+        keySpace.publish(1, 3000);
+        keySpace.publish(3, 4000);
+        Random rng = new Random(7);
+        int[] picks = new int[4];
+        for (int i = 0; i < 80000; i++) {
+            picks[keySpace.pickWorker(rng)]++;
+        }
+        assertEquals(10000, picks[0], 800);
+        assertEquals(30000, picks[1], 800);
+        assertEquals(0, picks[2]);
+        assertEquals(40000, picks[3], 800);
+    }
+
+    @Test
+    public void testOneBigWorkerAmongMany() {
+        // An earlier run's records all under one worker ID
+        POCKeySpace keySpace = new POCKeySpace(5000);
+        keySpace.publish(17, 1000000);
+        keySpace.publish(4000, 1);
+        Random rng = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(17, keySpace.pickWorker(rng));
+        }
+    }
+
+    @Test
+    public void testMarkOnlyGoesUp() {
+        POCKeySpace keySpace = new POCKeySpace(1);
+        keySpace.publish(0, 2048);
+        keySpace.publish(0, 1024);
+        assertEquals(2048, keySpace.highWater(0));
+    }
+
+    @Test
+    public void testKeysStayInTheWorkingSet() throws ParseException {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--globalreads", "-j", "10"});
+        POCKeySpace keySpace = new POCKeySpace(2);
+        keySpace.publish(0, 500);
+        keySpace.publish(1, 1000);
+        KeyDistribution uniform = KeyDistribution.create("uniform");
+        Random rng = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            Document key = keySpace.pickKey(uniform, rng, testOpts);
+            int sequence = keySpace.highWater(key.getInteger("w"));
+            assertTrue(key.getInteger("i") >= sequence * 9 / 10 && key.getInteger("i") < sequence);
+        }
+    }
+
+    @Test
+    public void testKeysSkipDeletedRecords() throws ParseException {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--globalreads"});
+        POCKeySpace keySpace = new POCKeySpace(2);
+        keySpace.publish(0, 1000);
+        keySpace.deleted(0, 1000);
+        keySpace.publish(1, 1000);
+        keySpace.deleted(1, 900);
+        KeyDistribution uniform = KeyDistribution.create("uniform");
+        Random rng = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            Document key = keySpace.pickKey(uniform, rng, testOpts);
+            assertEquals(1, (int) key.getInteger("w"));
+            assertTrue(key.getInteger("i") >= 900 && key.getInteger("i") < 1000);
+            Document start = POCWorker.rangeStart(keySpace, uniform, rng, 0, 0, 0);
+            assertTrue(start.getInteger("i") >= 900);
+        }
+    }
+}
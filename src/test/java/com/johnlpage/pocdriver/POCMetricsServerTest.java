@@ -0,0 +1,68 @@
+package com.johnlpage.pocdriver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class POCMetricsServerTest {
+
+    @Test
+    public void testPrometheusText() throws Exception {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--metricsport", "9100"});
+        POCTestResults testResults = new POCTestResults();
+        POCMetricsServer metrics = new POCMetricsServer(testResults, testOpts);
+        assertTrue(metrics.render().contains("pocdriver_latency_seconds{op=\"inserts\",quantile=\"0.99\"} NaN\n"));
+
+        testResults.RecordOpsDone(POCopType.INSERTS, 100);
+        testResults.RecordError(POCopType.UPDATES);
+        testResults.RecordLatency(POCopType.INSERTS, TimeUnit.MILLISECONDS.toNanos(2), 100);
+        String before = metrics.render();
+        // Nothing is published until the reporter collects the interval
+        assertTrue(before.contains("pocdriver_latency_seconds_count{op=\"inserts\"} 0\n"));
+        testResults.GetIntervalLatency(POCopType.INSERTS);
+
+        String text = metrics.render();
+        assertTrue(text.contains("# TYPE pocdriver_ops_total counter\n"));
+        assertTrue(text.contains("pocdriver_ops_total{op=\"inserts\"} 100\n"));
+        assertTrue(text.contains("pocdriver_errors_total{op=\"updates\"} 1\n"));
+        assertTrue(text.contains("pocdriver_latency_seconds_count{op=\"inserts\"} 100\n"));
+        assertTrue(text.contains("pocdriver_latency_seconds{op=\"inserts\",quantile=\"0.5\"} 0.002"));
+        assertFalse(text.contains("corrected"));
+        // Still there for the reporter's own total
+        assertEquals(100, testResults.GetTotalLatency(POCopType.INSERTS).getTotalCount());
+        for (String line : text.split("\n")) {
+            assertTrue(line, line.startsWith("# ") || line.matches("pocdriver_\\w+(\\{[^}]*\\})? (NaN|-?[0-9.]+)"));
+        }
+    }
+
+    @Test
+    public void testServesMetrics() throws Exception {
+        POCMetricsServer metrics = new POCMetricsServer(new POCTestResults(),
+                new POCTestOptions(new String[]{"--openloop", "-q", "100"}));
+        metrics.start(0);
+        try {
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://localhost:" + metrics.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                body.write(buffer, 0, n);
+            }
+            in.close();
+            assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8)
+                    .contains("pocdriver_corrected_latency_seconds_count{op=\"deletes\"} 0\n"));
+        } finally {
+            metrics.stop();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoClient;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class POCServerSamplerTest {
+
+    private Document serverStatus(int inserts, long dirtyBytes, int writeTickets) {
+        return new Document("process", "mongod")
+                .append("opcounters", new Document("insert", inserts).append("query", 10)
+                        .append("update", 0L).append("delete", 0).append("getmore", 0).append("command", 5))
+                .append("wiredTiger", new Document("cache", new Document("maximum bytes configured", 1000.0)
+                        .append("bytes currently in the cache", 800L)
+                        .append("tracked dirty bytes in the cache", dirtyBytes))
+                        .append("concurrentTransactions", new Document()
+                                .append("read", new Document("out", 0).append("available", 128))
+                                .append("write", new Document("out", 128 - writeTickets).append("available", writeTickets))));
+    }
+
+    private Document replSetStatus(long primaryMillis, long selfMillis) {
+        return new Document("members", Arrays.asList(
+                new Document("state", 1).append("optimeDate", new Date(primaryMillis)),
+                new Document("state", 2).append("self", true).append("optimeDate", new Date(selfMillis))));
+    }
+
+    @Test
+    public void testIntervalRatesAndLevels() {
+        POCServerSampler sampler = new POCServerSampler(new String[]{"localhost:27017", "localhost:27018"},
+                new MongoClient[0]);
+        long start = System.nanoTime();
+        sampler.record(0, start, serverStatus(1000, 50, 120), replSetStatus(10000, 10000));
+        sampler.record(0, start + TimeUnit.SECONDS.toNanos(1), serverStatus(1500, 100, 20), replSetStatus(12000, 9500));
+        sampler.record(0, start + TimeUnit.SECONDS.toNanos(2), serverStatus(3000, 60, 90), replSetStatus(13000, 13000));
+
+        double[][] interval = sampler.GetInterval();
+        double[] stats = interval[0];
+        assertEquals(1000, stats[0], 0.01);
+        assertEquals(0, stats[1], 0.01);
+        assertEquals(80, stats[POCServerSampler.CACHE_USED], 0.01);
+        // The last reading for the cache, the worst for tickets and lag
+        assertEquals(6, stats[POCServerSampler.CACHE_DIRTY], 0.01);
+        assertEquals(20, stats[POCServerSampler.WRITE_TICKETS], 0.01);
+        assertEquals(128, stats[POCServerSampler.READ_TICKETS], 0.01);
+        assertEquals(2.5, stats[POCServerSampler.REPL_LAG], 0.01);
+        // Never answered
+        assertTrue(Double.isNaN(interval[1][0]));
+
+        // The next interval runs on from the last reading
+        sampler.record(0, start + TimeUnit.SECONDS.toNanos(4), serverStatus(4000, 60, 90), null);
+        stats = sampler.GetInterval()[0];
+        assertEquals(500, stats[0], 0.01);
+        assertTrue(Double.isNaN(stats[POCServerSampler.REPL_LAG]));
+        assertTrue(Double.isNaN(sampler.GetInterval()[0][0]));
+    }
+
+    @Test
+    public void testMongosHasNoCache() {
+        POCServerSampler sampler = new POCServerSampler(new String[]{"mongos:27017"}, new MongoClient[0]);
+        Document status = serverStatus(0, 0, 0);
+        status.remove("wiredTiger");
+        long start = System.nanoTime();
+        sampler.record(0, start, status, null);
+        sampler.record(0, start + TimeUnit.SECONDS.toNanos(1), status, null);
+        double[] stats = sampler.GetInterval()[0];
+        assertEquals(0, stats[0], 0.01);
+        assertTrue(Double.isNaN(stats[POCServerSampler.CACHE_USED]));
+        assertTrue(Double.isNaN(stats[POCServerSampler.WRITE_TICKETS]));
+    }
+}
@@ -0,0 +1,120 @@
+package com.johnlpage.pocdriver;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class POCTestLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void writeIntervals(POCTestLog log) throws IOException {
+        writeIntervals(log, 0);
+    }
+
+    private void writeIntervals(POCTestLog log, int servers) throws IOException {
+        Histogram latency = new Histogram(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+        latency.recordValueWithCount(1500, 99);
+        latency.recordValue(40000);
+        Histogram corrected = new Histogram(POCTestResults.MAX_LATENCY_US, POCTestResults.LATENCY_DIGITS);
+        corrected.recordValue(250000);
+        for (int i = 1; i <= 3; i++) {
+            log.startInterval(new Date(1500000000000L + i * 10000L), i * 10, i * 1000, i - 1, i * 250);
+            for (POCopType o : POCopType.values()) {
+                log.logOp(100 * i, 1000 * i, o.ordinal(), 99.5, latency, corrected);
+            }
+            double[][] serverStats = new double[servers][POCServerSampler.STATS.length];
+            for (double[] stats : serverStats) {
+                Arrays.fill(stats, 12.345 * i);
+                stats[POCServerSampler.REPL_LAG] = Double.NaN;
+            }
+            log.logServers(serverStats);
+            log.endInterval();
+        }
+        log.close();
+    }
+
+    @Test
+    public void testCsvRowPerInterval() throws IOException {
+        File csvFile = folder.newFile("stats.csv");
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, true));
+
+        String[] lines = new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(4, lines.length);
+        int columns = lines[0].split(",").length;
+        assertEquals(5 + POCopType.values().length * (4 + 2 * (POCTestReporter.PERCENTILES.length + 1)), columns);
+        for (String line : lines) {
+            assertEquals(columns, line.split(",").length);
+        }
+        assertTrue(lines[0].startsWith("time,elapsed,inserted,bulk_retries,recovery_ms,inserts_per_sec,"));
+    }
+
+    @Test
+    public void testCsvRunsFollowOnInOneFile() throws IOException {
+        File csvFile = folder.newFile("stats.csv");
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, false));
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, false));
+
+        String[] lines = new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(7, lines.length);
+        assertTrue(lines[0].startsWith("time,"));
+        for (int i = 1; i < lines.length; i++) {
+            assertFalse(lines[i].startsWith("time,"));
+        }
+    }
+
+    @Test
+    public void testBinaryConvertsToSameCsv() throws IOException {
+        File csvFile = folder.newFile("stats.csv");
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, true));
+        File binFile = folder.newFile("stats.bin");
+        writeIntervals(new POCTestLog(binFile.getPath(), true, true));
+
+        StringWriter converted = new StringWriter();
+        POCTestLog.binaryToCsv(binFile.getPath(), new PrintWriter(converted));
+        String expected = new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8);
+        assertEquals(expected.replace("\r\n", "\n"), converted.toString().replace("\r\n", "\n"));
+    }
+
+    @Test
+    public void testServerColumns() throws IOException {
+        String[] servers = {"host1:27017", "host2:27017"};
+        File csvFile = folder.newFile("stats.csv");
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, false, servers), servers.length);
+        File binFile = folder.newFile("stats.bin");
+        writeIntervals(new POCTestLog(binFile.getPath(), true, false, servers), servers.length);
+
+        String expected = new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8);
+        String[] lines = expected.split("\n");
+        int columns = 5 + POCopType.values().length * (4 + POCTestReporter.PERCENTILES.length + 1)
+                + servers.length * POCServerSampler.STATS.length;
+        assertEquals(columns, lines[0].split(",").length);
+        assertTrue(lines[0].endsWith(",host2:27017_repl_lag_s"));
+        // No lag figure leaves the last column empty
+        assertTrue(lines[1].endsWith(",12.35,"));
+
+        StringWriter converted = new StringWriter();
+        POCTestLog.binaryToCsv(binFile.getPath(), new PrintWriter(converted));
+        assertEquals(expected.replace("\r\n", "\n"), converted.toString().replace("\r\n", "\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        File csvFile = folder.newFile("stats.csv");
+        writeIntervals(new POCTestLog(csvFile.getPath(), false, false));
+        POCTestLog.binaryToCsv(csvFile.getPath(), new PrintWriter(new StringWriter()));
+    }
+}
@@ -0,0 +1,62 @@
+package com.johnlpage.pocdriver;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class POCTestResultsTest {
+
+    @Test
+    public void testLatencyMergedAcrossThreads() throws InterruptedException {
+        final POCTestResults results = new POCTestResults();
+        final int threads = 8;
+        final int perThread = 1000;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long millis = t + 1;
+            Thread w = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        results.RecordLatency(POCopType.KEYQUERIES, TimeUnit.MILLISECONDS.toNanos(millis), 1);
+                    }
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+
+        Histogram interval = results.GetIntervalLatency(POCopType.KEYQUERIES);
+        assertEquals(threads * perThread, interval.getTotalCount());
+        assertEquals(8.0, interval.getMaxValue() / 1000.0, 0.1);
+        assertEquals(4.0, interval.getValueAtPercentile(50) / 1000.0, 0.1);
+
+        // Nothing new so the next interval is empty but the total keeps it all
+        assertEquals(0, results.GetIntervalLatency(POCopType.KEYQUERIES).getTotalCount());
+        assertEquals(threads * perThread, results.GetTotalLatency(POCopType.KEYQUERIES).getTotalCount());
+    }
+
+    @Test
+    public void testBatchLatencyCountsEveryOp() {
+        POCTestResults results = new POCTestResults();
+        results.RecordLatency(POCopType.INSERTS, TimeUnit.MILLISECONDS.toNanos(20), 512);
+        results.RecordLatency(POCopType.INSERTS, TimeUnit.MILLISECONDS.toNanos(20), 0);
+        assertEquals(512, results.GetIntervalLatency(POCopType.INSERTS).getTotalCount());
+    }
+
+    @Test
+    public void testCorrectedLatencyKeptSeparately() {
+        POCTestResults results = new POCTestResults();
+        results.RecordLatency(POCopType.UPDATES, TimeUnit.MILLISECONDS.toNanos(2), 1);
+        results.RecordCorrectedLatency(POCopType.UPDATES, TimeUnit.MILLISECONDS.toNanos(200), 1);
+        assertEquals(2.0, results.GetIntervalLatency(POCopType.UPDATES).getMaxValue() / 1000.0, 0.1);
+        assertEquals(200.0, results.GetIntervalCorrectedLatency(POCopType.UPDATES).getMaxValue() / 1000.0, 2);
+    }
+}
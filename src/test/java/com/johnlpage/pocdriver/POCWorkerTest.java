@@ -0,0 +1,47 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoException;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class POCWorkerTest {
+
+    @Test
+    public void testCreatedForTTL() throws Exception {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--ttl", "3600", "--changestreams", "1"});
+        TestRecord testRecord = new TestRecord(8, 0, 24,
+                123, 0, 1024,
+                new int[]{0, 0}, 128, new Random());
+        POCWorker.stamp(testRecord, testOpts);
+        long before = System.currentTimeMillis();
+        testRecord.refresh(123, 1);
+        Date created = (Date) testRecord.internalDoc.get(TestRecord.CREATED);
+        assertTrue(created.getTime() >= before);
+
+        Document decoded = testRecord.writeRaw(new BasicOutputBuffer(), 123, 2).decode(new DocumentCodec());
+        TestRecordTest.assertSameShape(testRecord.internalDoc, decoded);
+        assertTrue(decoded.getDate(TestRecord.CREATED).getTime() >= before);
+    }
+
+    @Test
+    public void testTransactionErrorLabels() {
+        MongoException writeConflict = new MongoException(112, "WriteConflict");
+        writeConflict.addLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+        MongoException commitTimeout = new MongoException(50, "MaxTimeMSExpired");
+        commitTimeout.addLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+
+        assertTrue(POCWorker.transientTxnError(writeConflict));
+        assertFalse(POCWorker.unknownCommitResult(writeConflict));
+        assertTrue(POCWorker.unknownCommitResult(commitTimeout));
+        assertFalse(POCWorker.transientTxnError(commitTimeout));
+        assertFalse(POCWorker.transientTxnError(new MongoException(11000, "duplicate key")));
+        assertFalse(POCWorker.transientTxnError(new IllegalStateException()));
+    }
+}
@@ -0,0 +1,86 @@
+package com.johnlpage.pocdriver;
+
+import com.johnlpage.pocdriver.POCWorkflow.Op;
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class POCWorkflowTest {
+
+    // One time through, as a worker would run it
+    private List<Op> run(POCWorkflow workflow, Random rng) {
+        List<Op> ran = new ArrayList<Op>();
+        for (int step = workflow.next(0, rng); step < workflow.length(); step = workflow.next(step + 1, rng)) {
+            ran.add(workflow.op(step));
+        }
+        return ran;
+    }
+
+    @Test
+    public void testOriginalWorkflows() throws ParseException {
+        assertEquals(Arrays.asList(Op.KEYQUERY, Op.INSERT, Op.INSERT, Op.POP, Op.POP, Op.UPDATE),
+                run(POCWorkflow.compile("kiippu"), new Random()));
+    }
+
+    @Test
+    public void testRepeatsAndThinkTime() throws ParseException {
+        POCWorkflow workflow = POCWorkflow.compile("i(ut250)2d3");
+        assertEquals(Arrays.asList(Op.INSERT, Op.UPDATE, Op.THINK, Op.UPDATE, Op.THINK, Op.DELETE, Op.DELETE, Op.DELETE),
+                run(workflow, new Random()));
+        assertEquals(250, workflow.arg(2));
+        assertEquals(250, workflow.arg(4));
+    }
+
+    @Test
+    public void testBranchesFollowTheirWeights() throws ParseException {
+        POCWorkflow workflow = POCWorkflow.compile("k[u:3|g[r|d]]p");
+        Random rng = new Random(7);
+        int updates = 0;
+        int ranges = 0;
+        for (int i = 0; i < 40000; i++) {
+            List<Op> ran = run(workflow, rng);
+            assertEquals(Op.KEYQUERY, ran.get(0));
+            assertEquals(Op.POP, ran.get(ran.size() - 1));
+            if (ran.get(1) == Op.UPDATE) {
+                assertEquals(3, ran.size());
+                updates++;
+            } else {
+                assertEquals(Arrays.asList(Op.ARRAYUPDATE), ran.subList(1, 2));
+                assertEquals(4, ran.size());
+                if (ran.get(2) == Op.RANGEQUERY) {
+                    ranges++;
+                }
+            }
+        }
+        assertEquals(30000, updates, 600);
+        assertEquals(5000, ranges, 400);
+    }
+
+    @Test
+    public void testOpTypesRun() throws ParseException {
+        POCWorkflow workflow = POCWorkflow.compile("k[u|g]pt10");
+        assertTrue(workflow.runs(POCopType.KEYQUERIES));
+        assertTrue(workflow.runs(POCopType.UPDATES));
+        assertTrue(workflow.runs(POCopType.ARRAYUPDATES));
+        assertFalse(workflow.runs(POCopType.INSERTS));
+        assertFalse(workflow.runs(POCopType.AGGREGATIONS));
+    }
+
+    @Test
+    public void testBadWorkflows() {
+        for (String bad : new String[]{"", "ix", "(iu", "[i|u", "t", "i0", "[i:0|u]", "i)"}) {
+            try {
+                POCWorkflow.compile(bad);
+                fail(bad);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+}
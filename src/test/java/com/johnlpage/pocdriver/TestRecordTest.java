@@ -1,11 +1,16 @@
 package com.johnlpage.pocdriver;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.io.BasicOutputBuffer;
 import org.bson.json.JsonMode;
 import org.bson.json.JsonWriterSettings;
 import org.junit.*;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -75,4 +80,55 @@ public class TestRecordTest {
         assertTrue(fields.contains("node1.node0.fld6"));
     }
 
+    @Test
+    public void testRefresh() {
+        int nFields = 16;
+        int[] array = new int[]{2, 3};
+        TestRecord testRecord = new TestRecord(nFields, 1, 24,
+                123, 7, numberSize,
+                array, binsize, new Random());
+        List<String> before = testRecord.listFields();
+        Document node0 = (Document) testRecord.internalDoc.get("node0");
+        Object date = node0.get("fld1");
+
+        testRecord.refresh(124, 8);
+        Document id = (Document) testRecord.internalDoc.get("_id");
+        assertEquals(124, (int) id.getInteger("w"));
+        assertEquals(8, (int) id.getInteger("i"));
+        // Same shape with the same objects reused
+        assertEquals(before, testRecord.listFields());
+        assertSame(node0, testRecord.internalDoc.get("node0"));
+        assertSame(date, node0.get("fld1"));
+        assertEquals("_id", testRecord.internalDoc.keySet().iterator().next());
+        assertTrue(testRecord.internalDoc.containsKey("arr"));
+    }
+
+    @Test
+    public void testRawMatchesDocument() {
+        int[] array = new int[]{2, 3};
+        TestRecord testRecord = new TestRecord(16, 1, 24,
+                123, 0, numberSize,
+                array, binsize, new Random());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        // Write one first so the second doesn't start at the front of the buffer
+        testRecord.writeRaw(buffer, 123, 0);
+        RawBsonDocument raw = testRecord.writeRaw(buffer, 123, 1);
+        Document decoded = raw.decode(new DocumentCodec());
+
+        assertEquals(new Document("w", 123).append("i", 1), decoded.get("_id"));
+        assertSameShape(testRecord.internalDoc, decoded);
+    }
+
+    static void assertSameShape(Document expected, Document actual) {
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+        for (String key : expected.keySet()) {
+            Object e = expected.get(key);
+            Object a = actual.get(key);
+            if (e instanceof Document) {
+                assertSameShape((Document) e, (Document) a);
+            } else {
+                assertTrue(key, e.getClass().isInstance(a) || (e instanceof List && a instanceof List));
+            }
+        }
+    }
 }